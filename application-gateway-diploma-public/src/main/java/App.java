@@ -5,14 +5,12 @@
  */
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
 import io.grpc.Grpc;
 import io.grpc.ManagedChannel;
 import io.grpc.TlsChannelCredentials;
 import org.hyperledger.fabric.client.CommitException;
 import org.hyperledger.fabric.client.CommitStatusException;
-import org.hyperledger.fabric.client.Contract;
 import org.hyperledger.fabric.client.EndorseException;
 import org.hyperledger.fabric.client.Gateway;
 import org.hyperledger.fabric.client.GatewayException;
@@ -30,10 +28,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.InvalidKeyException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.sql.*;
 
@@ -54,40 +56,131 @@ public final class App {
 	// Path to peer tls certificate.
 	private static final Path TLS_CERT_PATH = CRYPTO_PATH.resolve(Paths.get("peers/peer0.org2.example.com/tls/ca.crt"));
 
-	// Gateway peer end point.
-	private static final String PEER_ENDPOINT = "localhost:9051";
-	private static final String OVERRIDE_AUTH = "peer0.org2.example.com";
+	// Gateway peer end points, as host:port=TLS host name separated by commas. Evaluates go
+	// to the fastest healthy one; the first one also feeds the local index.
+	private static final String PEER_ENDPOINTS = System.getenv().getOrDefault("PEER_ENDPOINTS", "localhost:9051=peer0.org2.example.com");
+	// How long a peer that failed an evaluate is left out of the routing.
+	private static final long PEER_COOL_DOWN_MS = Long.parseLong(System.getenv().getOrDefault("PEER_COOL_DOWN_MS", "5000"));
+	// Deadline of an evaluate that does not ask for another one.
+	private static final Duration EVALUATE_DEADLINE = Duration.ofSeconds(5);
 
-	private final Contract contract;
-	private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	// Number of records fetched per evaluate when walking paginated queries.
+	private static final int PAGE_SIZE = Integer.parseInt(System.getenv().getOrDefault("PAGE_SIZE", "100"));
+	// How diplomas read from the ledger are printed: pretty, ndjson or raw (see DiplomaOutput).
+	private static final String OUTPUT_FORMAT = System.getenv().getOrDefault("OUTPUT_FORMAT", "pretty");
+
+	// Server mode (--serve [port]): worker threads, the deadline of a single evaluate, the
+	// least and the most a request may ask for, and how long shutdown waits for requests
+	// in progress.
+	private static final int HTTP_PORT = Integer.parseInt(System.getenv().getOrDefault("HTTP_PORT", "8080"));
+	private static final int HTTP_THREADS = Integer.parseInt(System.getenv().getOrDefault("HTTP_THREADS", "64"));
+	private static final long HTTP_DEADLINE_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_DEADLINE_MS", "3000"));
+	private static final long HTTP_MIN_DEADLINE_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_MIN_DEADLINE_MS", "1000"));
+	private static final long HTTP_MAX_DEADLINE_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_MAX_DEADLINE_MS", "30000"));
+	private static final long HTTP_SHUTDOWN_GRACE_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_SHUTDOWN_GRACE_MS", "10000"));
+	// How long an identical request may reuse a served result; 0 only shares calls in flight.
+	private static final long HTTP_RESULT_TTL_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_RESULT_TTL_MS", "0"));
+
+	// Local diploma index fed by block events (see DiplomaIndex); off unless INDEX_DIR is set.
+	// Its changes are synced to disk every INDEX_SYNC_INTERVAL_MS and on exit.
+	private static final String INDEX_DIR = System.getenv().getOrDefault("INDEX_DIR", "");
+	private static final long INDEX_SYNC_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("INDEX_SYNC_INTERVAL_MS", "1000"));
+
+	private final PeerPool peers;
+	private final DiplomaIndex index;
+	private final DiplomaOutput output = new DiplomaOutput(System.out, DiplomaOutput.Format.parse(OUTPUT_FORMAT));
+	private final Gson compactGson = new Gson();
 
 	public static void main(final String[] args) throws Exception {
 
-	// The gRPC client connection should be shared by all Gateway connections to
-	// this endpoint.
-	var channel = newGrpcConnection();
-
-		var builder = Gateway.newInstance().identity(newIdentity()).signer(newSigner()).connection(channel)
-				// Default timeouts for different gRPC calls
-				.evaluateOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
-				.endorseOptions(options -> options.withDeadlineAfter(15, TimeUnit.SECONDS))
-				.submitOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
-				.commitStatusOptions(options -> options.withDeadlineAfter(1, TimeUnit.MINUTES));
-
-		try (var gateway = builder.connect()) {
-			new App(gateway).run();
-		} finally {
-			channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		var identity = newIdentity();
+		var signer = newSigner();
+		var peers = new PeerPool(CHANNEL_NAME, CHAINCODE_NAME, Duration.ofMillis(PEER_COOL_DOWN_MS), EVALUATE_DEADLINE);
+
+		try (peers) {
+			for (var endpoint : PeerPool.parseEndpoints(PEER_ENDPOINTS)) {
+				// The gRPC client connection should be shared by all Gateway connections to
+				// this endpoint.
+				var channel = newGrpcConnection(endpoint[0], endpoint[1]);
+
+				var gateway = Gateway.newInstance().identity(identity).signer(signer).connection(channel)
+						// Default timeouts for different gRPC calls
+						.evaluateOptions(options -> options.withDeadlineAfter(EVALUATE_DEADLINE.toMillis(), TimeUnit.MILLISECONDS))
+						.endorseOptions(options -> options.withDeadlineAfter(15, TimeUnit.SECONDS))
+						.submitOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
+						.commitStatusOptions(options -> options.withDeadlineAfter(1, TimeUnit.MINUTES))
+						.connect();
+				peers.add(endpoint[0], channel, gateway);
+			}
+
+			try (var index = newIndex(peers.getPrimary())) {
+				var app = new App(peers, index);
+				if (args.length > 0 && args[0].equals("--serve")) {
+					app.serve(args.length > 1 ? Integer.parseInt(args[1]) : HTTP_PORT);
+				} else {
+					app.run();
+				}
+			}
 		}
 	}
 
-	private static ManagedChannel newGrpcConnection() throws IOException {
+	// Serves the reads over HTTP until the process is told to stop. On SIGTERM or
+	// Ctrl-C the server drains requests in progress before the gateway and the
+	// gRPC channel are closed by main.
+	private void serve(int port) throws IOException, InterruptedException {
+
+		var server = new VerificationServer(new CoalescingEvaluator(peers, Duration.ofMillis(HTTP_RESULT_TTL_MS))
+										  , peers
+										  , index
+										  , port
+										  , HTTP_THREADS
+										  , PAGE_SIZE
+										  , Duration.ofMillis(HTTP_DEADLINE_MS)
+										  , Duration.ofMillis(HTTP_MIN_DEADLINE_MS)
+										  , Duration.ofMillis(HTTP_MAX_DEADLINE_MS));
+		var stopped = new CountDownLatch(1);
+		var mainThread = Thread.currentThread();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			System.out.println("Shutting down ...");
+			try {
+				server.stop(Duration.ofMillis(HTTP_SHUTDOWN_GRACE_MS));
+				stopped.countDown();
+				// Let main close the gateway and the channel before the JVM exits.
+				mainThread.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+
+		server.start();
+		stopped.await();
+	}
+
+	private static DiplomaIndex newIndex(final Gateway gateway) throws IOException, GatewayException {
+
+		if (INDEX_DIR.isBlank()) {
+			return null;
+		}
+		var index = new DiplomaIndex(gateway.getNetwork(CHANNEL_NAME)
+								   , CHANNEL_NAME
+								   , CHAINCODE_NAME
+								   , Paths.get(INDEX_DIR)
+								   , Duration.ofMillis(INDEX_SYNC_INTERVAL_MS));
+		index.start();
+		return index;
+	}
+
+	// The org's peers share a TLS CA, so its certificate verifies any of them.
+	private static ManagedChannel newGrpcConnection(final String endpoint, final String overrideAuth) throws IOException {
 		var credentials = TlsChannelCredentials.newBuilder()
 				.trustManager(TLS_CERT_PATH.toFile())
 				.build();
-		return Grpc.newChannelBuilder(PEER_ENDPOINT, credentials)
-				.overrideAuthority(OVERRIDE_AUTH)
-				.build();
+		var builder = Grpc.newChannelBuilder(endpoint, credentials);
+		if (overrideAuth != null) {
+			builder.overrideAuthority(overrideAuth);
+		}
+		return builder.build();
 	}
 
 	private static Identity newIdentity() throws IOException, CertificateException {
@@ -110,38 +203,60 @@ public final class App {
 		}
 	}
 
-	public App(final Gateway gateway) {
-		// Get a network instance representing the channel where the smart contract is
-		// deployed.
-		var network = gateway.getNetwork(CHANNEL_NAME);
-
-		// Get the smart contract from the network.
-		contract = network.getContract(CHAINCODE_NAME);
+	public App(final PeerPool peers, final DiplomaIndex index) {
+		// Every read is an evaluate, routed by the pool to one of the org's peers.
+		this.peers = peers;
+		this.index = index;
 	}
 
 	public void run() throws GatewayException, CommitException, SQLException, Exception, DateTimeParseException {
 
 		Scanner sc = new Scanner(System.in);
 		while (true) {
-			System.out.println("Enter: a to read all diplomas");
+			System.out.println("Enter: r to read diplomas by ID");
+			System.out.println("       a to read all diplomas");
 			System.out.println("       n to read diploma by the owner's name");
 			System.out.println("       i to read diploma by the owner's national ID");
+			if (index != null) {
+				System.out.println("       o to read diplomas by institution");
+			}
+			System.out.println("       v to verify a diploma by its document hash or printout");
 			System.out.println("       x to exit");
 
 			String str = sc.nextLine();
 
-			if (str.equals("a")) {
-				System.out.println(getAllDiplomas());
+			if (str.equals("r")) {
+				System.out.println("Insert diploma IDs separated by spaces or commas:");
+				String diplomaIDs = sc.nextLine();
+				try {
+					readDiplomas(parseDiplomaIDs(diplomaIDs));
+				} catch(Exception e) {
+					System.out.println("ERROR reading diplomas: " + e.getMessage());
+				}
+			} else if (str.equals("a")) {
+				getAllDiplomas();
 			} else if (str.equals("n")) {
 				System.out.println("Insert first name:");
 				String firstName = sc.nextLine();
 				System.out.println("Insert last name:");
 				String lastName = sc.nextLine();
-				System.out.println(readDiplomaByName(firstName, lastName));
+				readDiplomaByName(firstName, lastName);
 			} else if (str.equals("i")) {
 				System.out.println("Insert national ID:");
 				String nationalID = sc.nextLine();
-				System.out.println(readDiplomaByNationalID(nationalID));
+				readDiplomaByNationalID(nationalID);
+			} else if (str.equals("o") && index != null) {
+				System.out.println("Insert institution:");
+				String institution = sc.nextLine();
+				readDiplomaByInstitution(institution);
+			} else if (str.equals("v")) {
+				System.out.println("Insert the document hash or the diploma JSON from the printout:");
+				String document = sc.nextLine();
+				try {
+					verifyDiploma(document);
+				} catch(Exception e) {
+					System.out.println("ERROR verifying diploma: " + e.getMessage());
+				}
 			} else if (str.equals("x")) {
 				System.out.println("Bye");
 				break;
@@ -150,33 +265,98 @@ public final class App {
 		sc.close();
 	}
 
-	private String prettyJson(final byte[] json) {
-		return prettyJson(new String(json, StandardCharsets.UTF_8));
+	// Reads the diplomas in chunks of PAGE_SIZE IDs, one evaluate per chunk.
+	private void readDiplomas(List<String> diplomaIDs) throws GatewayException {
+
+		for (int from = 0; from < diplomaIDs.size(); from += PAGE_SIZE) {
+			var chunk = diplomaIDs.subList(from, Math.min(from + PAGE_SIZE, diplomaIDs.size()));
+			var result = peers.evaluate("readDiplomas", compactGson.toJson(chunk));
+
+			output.printLookup(result);
+		}
+	}
+
+	private static List<String> parseDiplomaIDs(String line) {
+		List<String> diplomaIDs = new ArrayList<>();
+		for (String diplomaID : line.trim().split("[,\\s]+")) {
+			if (!diplomaID.isEmpty()) {
+				diplomaIDs.add(diplomaID);
+			}
+		}
+		return diplomaIDs;
 	}
 
-	private String prettyJson(final String json) {
-		var parsedJson = JsonParser.parseString(json);
-		return gson.toJson(parsedJson);
+	// A printout carries the diploma as JSON; anything else is taken to be the
+	// document hash. Either way the peer answers with a single key lookup.
+	private void verifyDiploma(String document) throws GatewayException {
+
+		String trimmed = document.trim();
+		var result = trimmed.startsWith("{")
+				? peers.evaluate("verifyDiplomaDocument", trimmed)
+				: peers.evaluate("verifyDiplomaByHash", trimmed);
+
+		var verification = JsonParser.parseString(new String(result, StandardCharsets.UTF_8)).getAsJsonObject();
+		if (verification.get("valid").getAsBoolean()) {
+			System.out.println("VALID: the document matches diploma " + verification.get("diplomaID").getAsString());
+		} else {
+			System.out.println("NOT VALID: no diploma with this content is on the ledger");
+		}
 	}
 
-	private String getAllDiplomas() throws GatewayException {
+	private void getAllDiplomas() throws GatewayException {
 
-		var result = contract.evaluateTransaction("getAllDiplomas");
-		return prettyJson(result);
+		printPages(new DiplomaPages(peers::evaluate, PAGE_SIZE, "getAllDiplomasWithPagination"));
 	}
 
-	private String readDiplomaByName(String firstName, String lastName) throws GatewayException {
+	private void printPages(final DiplomaPages pages) throws GatewayException {
 
-		var result = contract.evaluateTransaction("queryDiplomasByName"
-												, firstName
-												, lastName);
-		return prettyJson(result);
+		while (pages.hasNext()) {
+			pages.next(output);
+			output.flush();
+		}
+		System.out.println(pages.getFetchedCount() + " diplomas found");
 	}
 
-	private String readDiplomaByNationalID(String nationalID) throws GatewayException {
+	private void printMatches(final DiplomaIndex.Matches matches) {
 
-		var result = contract.evaluateTransaction("queryDiplomasByNationalID"
-												, nationalID);
-		return prettyJson(result);
+		for (var diploma : matches.records) {
+			output.print(diploma);
+		}
+		System.out.println(matches.records.size() + " diplomas found in the local index at block height " + matches.blockHeight);
+	}
+
+	private void readDiplomaByInstitution(String institution) {
+
+		if (!index.isReady()) {
+			System.out.println("The local index is not ready yet (block height " + index.getBlockHeight()
+							 + " of " + index.getStartHeight() + ")");
+			return;
+		}
+		printMatches(index.byInstitution(institution));
+	}
+
+	private void readDiplomaByName(String firstName, String lastName) throws GatewayException {
+
+		if (index != null && index.isReady()) {
+			printMatches(index.byName(firstName, lastName));
+			return;
+		}
+		printPages(new DiplomaPages(peers::evaluate
+								  , PAGE_SIZE
+								  , "queryDiplomasByNameWithPagination"
+								  , firstName
+								  , lastName));
+	}
+
+	private void readDiplomaByNationalID(String nationalID) throws GatewayException {
+
+		if (index != null && index.isReady()) {
+			printMatches(index.byNationalID(nationalID));
+			return;
+		}
+		printPages(new DiplomaPages(peers::evaluate
+								  , PAGE_SIZE
+								  , "queryDiplomasByNationalIDWithPagination"
+								  , nationalID));
 	}	
 }
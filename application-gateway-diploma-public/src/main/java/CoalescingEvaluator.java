@@ -0,0 +1,174 @@
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hyperledger.fabric.client.GatewayException;
+
+import io.grpc.Status;
+
+/*
+ * Single-flight evaluates: while a call with the same function and arguments
+ * is in progress, further identical calls wait for its result instead of
+ * going to the peer. With a positive ttl a successful result is also reused
+ * for that long after it arrived; failures are never reused.
+ *
+ * The first caller's deadline applies to the shared call. Every other caller
+ * waits at most for its own deadline and then gets a DeadlineExceededException.
+ * When the shared call runs out of the first caller's time, the others that
+ * still have some left try again, so one of them makes a call of its own.
+ */
+final class CoalescingEvaluator {
+
+	// Expired results are swept once this many are kept.
+	private static final int SWEEP_THRESHOLD = 10_000;
+
+	private final PeerPool peers;
+	private final long ttlNanos;
+
+	private final Map<String, Call> calls = new ConcurrentHashMap<>();
+
+	private final AtomicLong peerCalls 	= new AtomicLong();
+	private final AtomicLong coalesced 	= new AtomicLong();
+	private final AtomicLong reused 	= new AtomicLong();
+
+	CoalescingEvaluator(final PeerPool peers
+					  , final Duration ttl) {
+
+		this.peers 		= peers;
+		this.ttlNanos 	= ttl.toNanos();
+	}
+
+	byte[] evaluate(final Duration deadline
+				  , final String function
+				  , final String... args) throws GatewayException {
+
+		String key = function + "\u0000" + String.join("\u0000", args);
+		long start = System.nanoTime();
+
+		while (true) {
+			Duration remaining = deadline.minusNanos(System.nanoTime() - start);
+			if (remaining.isNegative() || remaining.isZero()) {
+				throw new DeadlineExceededException("Deadline of " + deadline.toMillis() + " ms exceeded while waiting for an identical request");
+			}
+
+			Call call = calls.get(key);
+			if (call != null && call.isExpired()) {
+				calls.remove(key, call);
+				continue;
+			}
+			if (call == null) {
+				Call leader = new Call();
+				call = calls.putIfAbsent(key, leader);
+				if (call == null) {
+					return lead(key, leader, remaining, function, args);
+				}
+			}
+			byte[] result = follow(call, remaining, deadline);
+			if (result != null) {
+				return result;
+			}
+		}
+	}
+
+	long getPeerCalls() {
+		return peerCalls.get();
+	}
+
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	long getReused() {
+		return reused.get();
+	}
+
+	private byte[] lead(final String key
+					  , final Call call
+					  , final Duration deadline
+					  , final String function
+					  , final String... args) throws GatewayException {
+
+		peerCalls.incrementAndGet();
+		try {
+			byte[] result = peers.evaluate(deadline, function, args);
+			if (ttlNanos > 0) {
+				call.expires = System.nanoTime() + ttlNanos;
+				sweep();
+			} else {
+				calls.remove(key, call);
+			}
+			call.result.complete(result);
+			return result;
+		} catch (GatewayException | RuntimeException e) {
+			calls.remove(key, call);
+			call.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	// Null when the shared call missed the deadline of the caller that made it.
+	private byte[] follow(final Call call
+						, final Duration remaining
+						, final Duration deadline) throws GatewayException {
+
+		if (call.result.isDone() && !call.result.isCompletedExceptionally()) {
+			reused.incrementAndGet();
+		} else {
+			coalesced.incrementAndGet();
+		}
+
+		try {
+			return call.result.get(remaining.toNanos(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new DeadlineExceededException("Deadline of " + deadline.toMillis() + " ms exceeded while waiting for an identical request");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for an identical request", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof GatewayException
+					&& ((GatewayException) cause).getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
+				return null;
+			}
+			if (cause instanceof GatewayException) {
+				throw (GatewayException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private void sweep() {
+		if (calls.size() >= SWEEP_THRESHOLD) {
+			calls.values().removeIf(Call::isExpired);
+		}
+	}
+
+	static final class DeadlineExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		DeadlineExceededException(final String message) {
+			super(message);
+		}
+	}
+
+	private static final class Call {
+
+		final CompletableFuture<byte[]> result = new CompletableFuture<>();
+		// Set once the result may be reused; 0 while the call is in progress.
+		volatile long expires;
+
+		boolean isExpired() {
+			return expires != 0 && System.nanoTime() - expires >= 0;
+		}
+	}
+}
@@ -0,0 +1,567 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hyperledger.fabric.client.CloseableIterator;
+import org.hyperledger.fabric.client.GatewayException;
+import org.hyperledger.fabric.client.Network;
+import org.hyperledger.fabric.protos.common.Block;
+import org.hyperledger.fabric.protos.common.BlockMetadataIndex;
+import org.hyperledger.fabric.protos.common.BlockchainInfo;
+import org.hyperledger.fabric.protos.common.ChannelHeader;
+import org.hyperledger.fabric.protos.common.Envelope;
+import org.hyperledger.fabric.protos.common.HeaderType;
+import org.hyperledger.fabric.protos.common.Payload;
+import org.hyperledger.fabric.protos.ledger.rwset.TxReadWriteSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KVRWSet;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KVWrite;
+import org.hyperledger.fabric.protos.peer.ChaincodeAction;
+import org.hyperledger.fabric.protos.peer.ChaincodeActionPayload;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePayload;
+import org.hyperledger.fabric.protos.peer.Transaction;
+import org.hyperledger.fabric.protos.peer.TxValidationCode;
+
+import com.google.protobuf.ByteString;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/*
+ * Local read model of the diplomas, built by replaying the channel's blocks
+ * and applying the diploma writes of every valid transaction. Diplomas are
+ * indexed by national ID, name and institution, and every lookup reports the
+ * block height it reflects.
+ *
+ * The index is kept in memory and persisted incrementally in its directory.
+ * The diploma writes of every block are appended to diplomas.log, one line
+ * per block, and the log is synced every syncInterval. Once the log outgrows
+ * the snapshot, diplomas.ndjson, it is folded into a new one: a first line
+ * with the number of the last block applied, then one diploma per line. The
+ * snapshot is replaced atomically and the log emptied, so each save costs
+ * what changed, plus an occasional rewrite no larger than the log itself.
+ * After a restart the snapshot and the log are loaded and the blocks are
+ * replayed from the one after the last logged. Lookups should only be answered
+ * locally while isReady(), i.e. once the index has caught up with the height
+ * the channel had at start and while the block stream is connected. A block
+ * that cannot be applied stops the index for good, since every reconnect
+ * would deliver it again.
+ */
+final class DiplomaIndex implements AutoCloseable {
+
+	private static final String SNAPSHOT 	= "diplomas.ndjson";
+	private static final String LOG 		= "diplomas.log";
+	// The log is folded into the snapshot once it is larger than both this and the snapshot.
+	private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+	// Fields of a diploma in the order the chaincode's compact encoding writes them.
+	private static final String[] FIELDS = { "diplomaID", "nationalID", "firstName", "lastName", "dateOfBirth"
+										   , "placeOfBirth", "dateOfIssue", "institution", "course", "level", "degree" };
+	private static final byte JSON_START 			= '{';
+	private static final byte COMPACT_VERSION_1 	= 1;
+
+	private final Network network;
+	private final String channelName;
+	private final String chaincodeName;
+	private final Path directory;
+	private final long syncIntervalNanos;
+
+	private final Map<String, JsonObject> diplomas 			= new HashMap<>();
+	private final Map<String, Set<String>> byNationalID 	= new HashMap<>();
+	private final Map<String, Set<String>> byName 			= new HashMap<>();
+	private final Map<String, Set<String>> byInstitution 	= new HashMap<>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Number of the last block applied; -1 before the first one.
+	private volatile long lastBlock = -1;
+	// Only the listener thread writes the log, after start().
+	private Writer log;
+	private FileChannel logChannel;
+	private long loggedBlock = -1;
+	private long syncedBlock = -1;
+	private long syncedAt;
+	private long snapshotBytes;
+	private long startHeight;
+	private volatile boolean caughtUp;
+	private volatile boolean live;
+	private volatile boolean closed;
+	// Set when a block cannot be applied; the index then stops for good.
+	private volatile boolean failed;
+	private volatile CloseableIterator<Block> blocks;
+	private final Thread listener;
+
+	DiplomaIndex(final Network network
+			   , final String channelName
+			   , final String chaincodeName
+			   , final Path directory
+			   , final Duration syncInterval) {
+
+		this.network 				= network;
+		this.channelName 			= channelName;
+		this.chaincodeName 			= chaincodeName;
+		this.directory 				= directory;
+		this.syncIntervalNanos 		= syncInterval.toNanos();
+
+		this.listener = new Thread(this::listen, "diploma-blocks");
+		this.listener.setDaemon(true);
+	}
+
+	// Loads the saved index and starts following the blocks after it.
+	void start() throws IOException, GatewayException {
+
+		Files.createDirectories(directory);
+		load();
+		// Folding a log left by an earlier run also drops a line torn by a crash.
+		if (Files.exists(directory.resolve(LOG)) && Files.size(directory.resolve(LOG)) > 0) {
+			compact();
+		} else {
+			openLog(false);
+		}
+		loggedBlock = syncedBlock = lastBlock;
+		syncedAt = System.nanoTime();
+
+		byte[] info = network.getContract("qscc").evaluateTransaction("GetChainInfo", channelName);
+		startHeight = BlockchainInfo.parseFrom(info).getHeight();
+		caughtUp = lastBlock + 1 >= startHeight;
+
+		listener.start();
+	}
+
+	boolean isReady() {
+		return live && caughtUp && !failed;
+	}
+
+	// Height of the ledger the index reflects: the number of blocks applied.
+	long getBlockHeight() {
+		return lastBlock + 1;
+	}
+
+	long getStartHeight() {
+		return startHeight;
+	}
+
+	int size() {
+		lock.readLock().lock();
+		try {
+			return diplomas.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	Matches byNationalID(final String nationalID) {
+		return lookup(byNationalID, nationalID);
+	}
+
+	Matches byName(final String firstName
+				 , final String lastName) {
+		return lookup(byName, nameKey(firstName, lastName));
+	}
+
+	Matches byInstitution(final String institution) {
+		return lookup(byInstitution, institution);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		var current = blocks;
+		if (current != null) {
+			current.close();
+		}
+		listener.interrupt();
+		try {
+			listener.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Matches lookup(final Map<String, Set<String>> index
+						 , final String key) {
+
+		lock.readLock().lock();
+		try {
+			List<JsonObject> records = new ArrayList<>();
+			for (String diplomaID : index.getOrDefault(key, Collections.emptySet())) {
+				records.add(diplomas.get(diplomaID));
+			}
+			return new Matches(getBlockHeight(), records);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void listen() {
+
+		while (!closed && !failed) {
+			try (var stream = network.newBlockEventsRequest().startBlock(lastBlock + 1).build().getEvents()) {
+				blocks = stream;
+				live = true;
+				while (stream.hasNext()) {
+					Block block = stream.next();
+					try {
+						apply(block);
+					} catch (IOException | RuntimeException e) {
+						// Reconnecting would only deliver the same block again. The
+						// index keeps what it has, and lookups go to the peers.
+						failed = true;
+						System.out.println("ERROR: block " + block.getHeader().getNumber() 
+										 + " cannot be applied to the local diploma index, which stops at block height " 
+										 + getBlockHeight() + ": " + e.getMessage());
+						break;
+					}
+					if (!caughtUp && lastBlock + 1 >= startHeight) {
+						caughtUp = true;
+						System.out.println("Local diploma index caught up at block height " + getBlockHeight());
+					}
+					if (System.nanoTime() - syncedAt >= syncIntervalNanos) {
+						sync();
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				if (!closed) {
+					System.out.println("WARNING: diploma block stream interrupted: " + e.getMessage());
+				}
+			} finally {
+				live = false;
+				blocks = null;
+			}
+
+			if (closed || failed) {
+				break;
+			}
+			try {
+				TimeUnit.SECONDS.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		try {
+			// After a failed write the log is in doubt; a restart replays from what was synced.
+			if (!failed) {
+				sync();
+			}
+			log.close();
+		} catch (IOException e) {
+			System.out.println("WARNING: could not save the diploma index: " + e.getMessage());
+		}
+	}
+
+	// Applies the writes of the block's valid endorser transactions to this
+	// chaincode, and appends them to the log.
+	private void apply(final Block block) throws IOException {
+
+		long number = block.getHeader().getNumber();
+		if (number <= lastBlock) {
+			return;
+		}
+
+		ByteString validationCodes = block.getMetadata().getMetadata(BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE);
+		List<ByteString> envelopes = block.getData().getDataList();
+		List<KVWrite> writes = new ArrayList<>();
+
+		for (int i = 0; i < envelopes.size(); i++) {
+			if (i >= validationCodes.size() || validationCodes.byteAt(i) != TxValidationCode.VALID_VALUE) {
+				continue;
+			}
+
+			var payload = Payload.parseFrom(Envelope.parseFrom(envelopes.get(i)).getPayload());
+			var channelHeader = ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+			if (channelHeader.getType() != HeaderType.ENDORSER_TRANSACTION_VALUE) {
+				continue;
+			}
+
+			for (var action : Transaction.parseFrom(payload.getData()).getActionsList()) {
+				var actionPayload = ChaincodeActionPayload.parseFrom(action.getPayload());
+				var responsePayload = ProposalResponsePayload.parseFrom(actionPayload.getAction().getProposalResponsePayload());
+				var chaincodeAction = ChaincodeAction.parseFrom(responsePayload.getExtension());
+				for (var namespace : TxReadWriteSet.parseFrom(chaincodeAction.getResults()).getNsRwsetList()) {
+					if (namespace.getNamespace().equals(chaincodeName)) {
+						writes.addAll(KVRWSet.parseFrom(namespace.getRwset()).getWritesList());
+					}
+				}
+			}
+		}
+
+		// Each change is [diplomaID, diploma], with a null diploma for a delete.
+		JsonArray changes = new JsonArray();
+		for (KVWrite write : writes) {
+			// Composite keys (indexes, settings) start with U+0000; diplomas are stored under their ID.
+			if (write.getKey().startsWith("\u0000")) {
+				continue;
+			}
+			JsonArray change = new JsonArray();
+			change.add(write.getKey());
+			change.add(write.getIsDelete() ? null : decode(write.getValue().toByteArray()));
+			changes.add(change);
+		}
+
+		if (changes.size() > 0) {
+			appendToLog(number, changes);
+		}
+
+		lock.writeLock().lock();
+		try {
+			applyChanges(changes);
+			lastBlock = number;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void applyChanges(final JsonArray changes) {
+
+		for (var element : changes) {
+			JsonArray change = element.getAsJsonArray();
+			String diplomaID = change.get(0).getAsString();
+			remove(diplomaID);
+			if (!change.get(1).isJsonNull()) {
+				put(diplomaID, change.get(1).getAsJsonObject());
+			}
+		}
+	}
+
+	private void put(final String diplomaID
+				   , final JsonObject diploma) {
+
+		diplomas.put(diplomaID, diploma);
+		add(byNationalID, string(diploma, "nationalID"), diplomaID);
+		add(byName, nameKey(string(diploma, "firstName"), string(diploma, "lastName")), diplomaID);
+		add(byInstitution, string(diploma, "institution"), diplomaID);
+	}
+
+	private void remove(final String diplomaID) {
+
+		JsonObject diploma = diplomas.remove(diplomaID);
+		if (diploma != null) {
+			remove(byNationalID, string(diploma, "nationalID"), diplomaID);
+			remove(byName, nameKey(string(diploma, "firstName"), string(diploma, "lastName")), diplomaID);
+			remove(byInstitution, string(diploma, "institution"), diplomaID);
+		}
+	}
+
+	private static void add(final Map<String, Set<String>> index
+						  , final String key
+						  , final String diplomaID) {
+		// Sorted, so matches come in the order of the chaincode's index scans.
+		index.computeIfAbsent(key, k -> new TreeSet<>()).add(diplomaID);
+	}
+
+	private static void remove(final Map<String, Set<String>> index
+							 , final String key
+							 , final String diplomaID) {
+
+		Set<String> diplomaIDs = index.get(key);
+		if (diplomaIDs != null) {
+			diplomaIDs.remove(diplomaID);
+			if (diplomaIDs.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	private void appendToLog(final long block
+						   , final JsonArray changes) throws IOException {
+
+		JsonObject line = new JsonObject();
+		line.addProperty("block", block);
+		line.add("changes", changes);
+		log.write(line.toString());
+		log.write('\n');
+		loggedBlock = block;
+	}
+
+	// Makes the blocks applied so far durable, and folds the log into the
+	// snapshot once it has outgrown it.
+	private void sync() throws IOException {
+
+		if (lastBlock == syncedBlock) {
+			return;
+		}
+		// Blocks without diploma writes only move the block number on.
+		if (lastBlock > loggedBlock) {
+			appendToLog(lastBlock, new JsonArray());
+		}
+		log.flush();
+		logChannel.force(false);
+
+		syncedBlock = lastBlock;
+		syncedAt 	= System.nanoTime();
+
+		if (logChannel.size() > Math.max(MIN_COMPACT_BYTES, snapshotBytes)) {
+			compact();
+		}
+	}
+
+	// Writes the whole index to a new snapshot and empties the log. The log is
+	// only emptied once the snapshot has replaced the old one, and replaying
+	// it skips the blocks the snapshot already holds, so a crash in between
+	// loses nothing. The listener thread is the only writer, so it can read
+	// the maps without locking.
+	private void compact() throws IOException {
+
+		Path snapshot = directory.resolve(SNAPSHOT);
+		Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temporary, UTF_8)) {
+			JsonObject header = new JsonObject();
+			header.addProperty("block", lastBlock);
+			writer.write(header.toString());
+			writer.write('\n');
+			for (JsonObject diploma : diplomas.values()) {
+				writer.write(diploma.toString());
+				writer.write('\n');
+			}
+		}
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		snapshotBytes = Files.size(snapshot);
+
+		if (log != null) {
+			log.close();
+		}
+		openLog(true);
+		loggedBlock = syncedBlock = lastBlock;
+		syncedAt = System.nanoTime();
+	}
+
+	private void openLog(final boolean truncate) throws IOException {
+
+		logChannel = truncate
+				? FileChannel.open(directory.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+								 , StandardOpenOption.TRUNCATE_EXISTING)
+				: FileChannel.open(directory.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+								 , StandardOpenOption.APPEND);
+		log = new BufferedWriter(Channels.newWriter(logChannel, UTF_8.newEncoder(), -1));
+	}
+
+	private void load() throws IOException {
+
+		Path snapshot = directory.resolve(SNAPSHOT);
+		if (Files.exists(snapshot)) {
+			try (BufferedReader reader = Files.newBufferedReader(snapshot, UTF_8)) {
+				String line = reader.readLine();
+				if (line != null) {
+					long block = JsonParser.parseString(line).getAsJsonObject().get("block").getAsLong();
+					while ((line = reader.readLine()) != null) {
+						JsonObject diploma = JsonParser.parseString(line).getAsJsonObject();
+						put(string(diploma, "diplomaID"), diploma);
+					}
+					lastBlock = block;
+				}
+			}
+			snapshotBytes = Files.size(snapshot);
+		}
+
+		Path logFile = directory.resolve(LOG);
+		if (Files.exists(logFile)) {
+			try (BufferedReader reader = Files.newBufferedReader(logFile, UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					JsonObject entry;
+					try {
+						entry = JsonParser.parseString(line).getAsJsonObject();
+					} catch (RuntimeException e) {
+						// The last line of a log cut short by a crash; nothing after it was synced.
+						break;
+					}
+					long block = entry.get("block").getAsLong();
+					if (block > lastBlock) {
+						applyChanges(entry.getAsJsonArray("changes"));
+						lastBlock = block;
+					}
+				}
+			}
+		}
+		if (lastBlock >= 0) {
+			System.out.println("Loaded " + diplomas.size() + " diplomas from the local index at block height " + getBlockHeight());
+		}
+	}
+
+	// State values are either the chaincode's Genson JSON or its compact encoding.
+	private static JsonObject decode(final byte[] value) {
+
+		if (value.length == 0) {
+			return null;
+		}
+		if (value[0] == JSON_START) {
+			return JsonParser.parseString(new String(value, UTF_8)).getAsJsonObject();
+		}
+		if (value[0] != COMPACT_VERSION_1) {
+			throw new IllegalStateException("Unknown diploma encoding version " + value[0]);
+		}
+
+		JsonObject diploma = new JsonObject();
+		int position = 1;
+		for (String field : FIELDS) {
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (position >= value.length || shift > 28) {
+					throw new IllegalStateException("Corrupt compact diploma value");
+				}
+				b = value[position++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			// The length is stored plus one; zero marks a null field.
+			if (length == 0) {
+				continue;
+			}
+			length--;
+			if (length > value.length - position) {
+				throw new IllegalStateException("Corrupt compact diploma value");
+			}
+			diploma.addProperty(field, new String(value, position, length, UTF_8));
+			position += length;
+		}
+		return diploma;
+	}
+
+	private static String nameKey(final String firstName
+								, final String lastName) {
+		return lastName + "\u0000" + firstName;
+	}
+
+	private static String string(final JsonObject object
+							   , final String member) {
+		var value = object.get(member);
+		return value == null || value.isJsonNull() ? "" : value.getAsString();
+	}
+
+	static final class Matches {
+
+		final long blockHeight;
+		final List<JsonObject> records;
+
+		Matches(final long blockHeight, final List<JsonObject> records) {
+			this.blockHeight 	= blockHeight;
+			this.records 		= records;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Prints the diplomas returned by the peer in one of three formats:
+ *
+ *   - pretty: every record indented over several lines
+ *   - ndjson: every record compact on a line of its own
+ *   - raw:    every payload as the peer sent it, on a line of its own
+ *
+ * Records are copied token by token from a JsonReader over the payload to a
+ * JsonWriter, so no tree and no String copy of a payload is built, whatever
+ * its size.
+ */
+final class DiplomaOutput implements DiplomaPages.PageReader {
+
+	enum Format {
+		PRETTY, NDJSON, RAW;
+
+		static Format parse(final String format) {
+			try {
+				return valueOf(format.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown output format " + format + " (expected pretty, ndjson or raw)");
+			}
+		}
+	}
+
+	private final PrintStream out;
+	private final Writer writer;
+	private final Format format;
+	private final Gson gson = new Gson();
+
+	DiplomaOutput(final PrintStream out
+				, final Format format) {
+
+		this.out 		= out;
+		this.writer 	= new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+		this.format 	= format;
+	}
+
+	@Override
+	public void page(final byte[] payload) throws IOException {
+		if (format == Format.RAW) {
+			writeRaw(payload);
+		}
+	}
+
+	@Override
+	public void record(final JsonReader record) throws IOException {
+		if (format == Format.RAW) {
+			record.skipValue();
+			return;
+		}
+		JsonWriter json = newJsonWriter();
+		copy(record, json);
+		json.flush();
+		writer.write('\n');
+	}
+
+	// Prints any JSON result, e.g. a single diploma.
+	void print(final byte[] payload) {
+		try {
+			if (format == Format.RAW) {
+				writeRaw(payload);
+			} else {
+				try (JsonReader reader = newJsonReader(payload)) {
+					record(reader);
+				}
+			}
+			flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Prints a record that is already in memory, e.g. from a local index.
+	void print(final JsonElement record) {
+		try {
+			JsonWriter json = newJsonWriter();
+			gson.toJson(record, json);
+			json.flush();
+			writer.write('\n');
+			flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Prints the records of a readDiplomas result and then a line for every
+	// diploma it did not find.
+	void printLookup(final byte[] payload) {
+
+		List<String> missing = new ArrayList<>();
+		try (JsonReader reader = newJsonReader(payload)) {
+			page(payload);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("records")) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						record(reader);
+					}
+					reader.endArray();
+				} else if (name.equals("missing")) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						missing.add(reader.nextString());
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		for (String diplomaID : missing) {
+			out.println("The diploma " + diplomaID + " does not exist");
+		}
+	}
+
+	void flush() {
+		try {
+			writer.flush();
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static JsonReader newJsonReader(final byte[] payload) {
+		return new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), UTF_8));
+	}
+
+	private void writeRaw(final byte[] payload) throws IOException {
+		// Whatever was written through the writer goes first.
+		writer.flush();
+		out.write(payload);
+		out.write('\n');
+	}
+
+	private JsonWriter newJsonWriter() {
+		// Never closed: that would close the shared writer.
+		JsonWriter json = new JsonWriter(writer);
+		if (format == Format.PRETTY) {
+			json.setIndent("  ");
+		}
+		json.setSerializeNulls(false);
+		return json;
+	}
+
+	// Copies the next value, however deeply nested, from in to out.
+	private static void copy(final JsonReader in
+						   , final JsonWriter out) throws IOException {
+
+		int depth = 0;
+		do {
+			switch (in.peek()) {
+				case BEGIN_ARRAY:
+					in.beginArray();
+					out.beginArray();
+					depth++;
+					break;
+				case END_ARRAY:
+					in.endArray();
+					out.endArray();
+					depth--;
+					break;
+				case BEGIN_OBJECT:
+					in.beginObject();
+					out.beginObject();
+					depth++;
+					break;
+				case END_OBJECT:
+					in.endObject();
+					out.endObject();
+					depth--;
+					break;
+				case NAME:
+					out.name(in.nextName());
+					break;
+				case STRING:
+					out.value(in.nextString());
+					break;
+				case NUMBER:
+					// Kept as written, without a round trip through double.
+					out.jsonValue(in.nextString());
+					break;
+				case BOOLEAN:
+					out.value(in.nextBoolean());
+					break;
+				case NULL:
+					in.nextNull();
+					out.nullValue();
+					break;
+				default:
+					throw new IOException("Unexpected end of the JSON payload");
+			}
+		} while (depth > 0);
+	}
+}
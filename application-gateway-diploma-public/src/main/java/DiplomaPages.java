@@ -0,0 +1,126 @@
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.hyperledger.fabric.client.Contract;
+import org.hyperledger.fabric.client.GatewayException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/*
+ * Walks a paginated chaincode query one page at a time. The chaincode function is
+ * called with the given arguments followed by the page size and the bookmark
+ * returned by the previous page, so only one page is held in memory at a time.
+ * Pages are read with a JsonReader, so next(PageReader) can stream the records
+ * on without building a tree of the page.
+ */
+final class DiplomaPages {
+
+	// Runs one evaluate; lets callers put e.g. a cache in front of the contract.
+	@FunctionalInterface
+	interface Evaluator {
+		byte[] evaluate(String function, String... args) throws GatewayException;
+	}
+
+	// Receives a page as it is read: first its payload as the peer sent it, then
+	// each of its records. record must consume exactly one value from the reader.
+	interface PageReader {
+		default void page(byte[] payload) throws IOException {
+		}
+
+		void record(JsonReader record) throws IOException;
+	}
+
+	private final Evaluator evaluator;
+	private final String function;
+	private final String[] args;
+	private final int pageSize;
+
+	private String bookmark = "";
+	private boolean lastPage = false;
+	private long fetchedCount = 0;
+
+	DiplomaPages( final Contract contract
+				, final int pageSize
+				, final String function
+				, final String... args) {
+
+		this(contract::evaluateTransaction, pageSize, function, args);
+	}
+
+	DiplomaPages( final Evaluator evaluator
+				, final int pageSize
+				, final String function
+				, final String... args) {
+
+		this.evaluator 	= evaluator;
+		this.function 	= function;
+		this.args 		= args;
+		this.pageSize 	= pageSize;
+	}
+
+	public boolean hasNext() {
+		return !lastPage;
+	}
+
+	public JsonArray next() throws GatewayException {
+
+		JsonArray records = new JsonArray();
+		next(record -> records.add(JsonParser.parseReader(record)));
+		return records;
+	}
+
+	// Returns the number of records in the page.
+	public int next(final PageReader reader) throws GatewayException {
+
+		if (lastPage) {
+			throw new NoSuchElementException();
+		}
+
+		String[] pageArgs = Arrays.copyOf(args, args.length + 2);
+		pageArgs[args.length] 		= Integer.toString(pageSize);
+		pageArgs[args.length + 1] 	= bookmark;
+
+		var result = evaluator.evaluate(function, pageArgs);
+
+		int fetched = 0;
+		String nextBookmark = "";
+		try (JsonReader page = DiplomaOutput.newJsonReader(result)) {
+			reader.page(result);
+			page.beginObject();
+			while (page.hasNext()) {
+				String name = page.nextName();
+				if (name.equals("records")) {
+					page.beginArray();
+					while (page.hasNext()) {
+						reader.record(page);
+					}
+					page.endArray();
+				} else if (name.equals("fetchedRecordsCount")) {
+					fetched = page.nextInt();
+				} else if (name.equals("bookmark") && page.peek() != JsonToken.NULL) {
+					nextBookmark = page.nextString();
+				} else {
+					page.skipValue();
+				}
+			}
+			page.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		bookmark 	= nextBookmark;
+		lastPage 	= fetched < pageSize || bookmark.isEmpty();
+		fetchedCount += fetched;
+
+		return fetched;
+	}
+
+	public long getFetchedCount() {
+		return fetchedCount;
+	}
+}
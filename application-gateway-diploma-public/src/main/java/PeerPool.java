@@ -0,0 +1,262 @@
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hyperledger.fabric.client.Contract;
+import org.hyperledger.fabric.client.Gateway;
+import org.hyperledger.fabric.client.GatewayException;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+
+/*
+ * Gateway connections to several peers of the org, one gRPC channel and
+ * Gateway each. Submits, events and anything else that needs a single
+ * Gateway use the primary, the first peer added.
+ *
+ * Evaluates go to the peer with the lowest expected latency: its EWMA
+ * latency, scaled up by its EWMA error rate. A peer that is unavailable is
+ * skipped for coolDown and the evaluate is retried on the next best one. A
+ * peer that misses the deadline is penalised the same way, but the error is
+ * returned, so that a caller's deadline is not spent once per peer. A missed
+ * deadline shorter than the default is the caller's choice, not a sign of a
+ * slow peer, and is not held against it. One
+ * evaluate in PROBE_INTERVAL goes to another healthy peer, which keeps the
+ * latencies of the slower peers current.
+ */
+final class PeerPool implements AutoCloseable {
+
+	// Weight of the newest sample in the moving averages.
+	private static final double ALPHA = 0.2;
+	// How much an error rate of 1 multiplies the expected latency by.
+	private static final double ERROR_PENALTY = 4;
+	private static final int PROBE_INTERVAL = 50;
+
+	private final String channelName;
+	private final String chaincodeName;
+	private final long coolDownNanos;
+	private final Duration defaultDeadline;
+
+	private final List<Peer> peers = new ArrayList<>();
+	private final AtomicLong evaluates = new AtomicLong();
+
+	PeerPool(final String channelName
+		   , final String chaincodeName
+		   , final Duration coolDown
+		   , final Duration defaultDeadline) {
+
+		this.channelName 		= channelName;
+		this.chaincodeName 		= chaincodeName;
+		this.coolDownNanos 		= coolDown.toNanos();
+		this.defaultDeadline 	= defaultDeadline;
+	}
+
+	// Splits "host:port=authority,host:port=authority"; the authority is optional.
+	static List<String[]> parseEndpoints(final String endpoints) {
+
+		List<String[]> parsed = new ArrayList<>();
+		for (String endpoint : endpoints.split(",")) {
+			endpoint = endpoint.trim();
+			if (endpoint.isEmpty()) {
+				continue;
+			}
+			int equals = endpoint.indexOf('=');
+			parsed.add(equals < 0
+					? new String[] { endpoint, null }
+					: new String[] { endpoint.substring(0, equals), endpoint.substring(equals + 1) });
+		}
+		if (parsed.isEmpty()) {
+			throw new IllegalArgumentException("No peer endpoints in \"" + endpoints + "\"");
+		}
+		return parsed;
+	}
+
+	// The pool takes over closing the gateway and the channel.
+	void add(final String name
+		   , final ManagedChannel channel
+		   , final Gateway gateway) {
+
+		peers.add(new Peer(name, channel, gateway, gateway.getNetwork(channelName).getContract(chaincodeName)));
+	}
+
+	Gateway getPrimary() {
+		return peers.get(0).gateway;
+	}
+
+	List<Peer> getPeers() {
+		return Collections.unmodifiableList(peers);
+	}
+
+	byte[] evaluate(final String function
+				  , final String... args) throws GatewayException {
+
+		return evaluate(defaultDeadline, function, args);
+	}
+
+	byte[] evaluate(final Duration deadline
+				  , final String function
+				  , final String... args) throws GatewayException {
+
+		boolean probe = evaluates.incrementAndGet() % PROBE_INTERVAL == 0;
+		Set<Peer> tried = new HashSet<>();
+
+		while (true) {
+			Peer peer = select(tried, probe);
+			tried.add(peer);
+			probe = false;
+
+			long start = System.nanoTime();
+			try {
+				byte[] result = peer.contract.newProposal(function)
+											 .addArguments(args)
+											 .build()
+											 .evaluate(options -> options.withDeadlineAfter(deadline.toMillis(), TimeUnit.MILLISECONDS));
+				peer.succeeded(System.nanoTime() - start);
+				return result;
+			} catch (GatewayException e) {
+				var code = e.getStatus().getCode();
+				if (code == Status.Code.UNAVAILABLE || code == Status.Code.RESOURCE_EXHAUSTED) {
+					peer.failed(coolDownNanos);
+					if (tried.size() < peers.size()) {
+						continue;
+					}
+				} else if (code == Status.Code.DEADLINE_EXCEEDED) {
+					if (deadline.compareTo(defaultDeadline) >= 0) {
+						peer.failed(coolDownNanos);
+					}
+				} else {
+					// The peer answered; the error is the chaincode's or the caller's.
+					peer.succeeded(System.nanoTime() - start);
+				}
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+
+		for (Peer peer : peers) {
+			peer.gateway.close();
+			peer.channel.shutdownNow();
+		}
+		for (Peer peer : peers) {
+			peer.channel.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	// The best healthy peer not tried yet; when every one left is cooling
+	// down, the one that has been for the longest.
+	private Peer select(final Set<Peer> tried
+					  , final boolean probe) {
+
+		long now = System.nanoTime();
+		List<Peer> healthy = new ArrayList<>();
+		Peer coolest = null;
+		for (Peer peer : peers) {
+			if (tried.contains(peer)) {
+				continue;
+			}
+			if (peer.isHealthy(now)) {
+				healthy.add(peer);
+			} else if (coolest == null || peer.coolDownUntil() - coolest.coolDownUntil() < 0) {
+				coolest = peer;
+			}
+		}
+		if (healthy.isEmpty()) {
+			return coolest;
+		}
+		if (probe && healthy.size() > 1) {
+			return healthy.get(ThreadLocalRandom.current().nextInt(healthy.size()));
+		}
+
+		Peer best = healthy.get(0);
+		for (Peer peer : healthy) {
+			if (peer.score() < best.score()) {
+				best = peer;
+			}
+		}
+		return best;
+	}
+
+	static final class Peer {
+
+		private final String name;
+		private final ManagedChannel channel;
+		private final Gateway gateway;
+		private final Contract contract;
+
+		private double latencyNanos;
+		private double errorRate;
+		private long calls;
+		private long errors;
+		private long coolDownUntil;
+		private boolean coolingDown;
+
+		Peer(final String name
+		   , final ManagedChannel channel
+		   , final Gateway gateway
+		   , final Contract contract) {
+
+			this.name 		= name;
+			this.channel 	= channel;
+			this.gateway 	= gateway;
+			this.contract 	= contract;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		synchronized double getLatencyMillis() {
+			return latencyNanos / 1_000_000;
+		}
+
+		synchronized double getErrorRate() {
+			return errorRate;
+		}
+
+		synchronized long getCalls() {
+			return calls;
+		}
+
+		synchronized long getErrors() {
+			return errors;
+		}
+
+		synchronized boolean isHealthy(final long now) {
+			return !coolingDown || now - coolDownUntil >= 0;
+		}
+
+		// Unmeasured peers score 0, so each one is tried early on.
+		synchronized double score() {
+			return latencyNanos * (1 + ERROR_PENALTY * errorRate);
+		}
+
+		private synchronized long coolDownUntil() {
+			return coolDownUntil;
+		}
+
+		private synchronized void succeeded(final long nanos) {
+			latencyNanos 	= latencyNanos == 0 ? nanos : latencyNanos + ALPHA * (nanos - latencyNanos);
+			errorRate 		= errorRate * (1 - ALPHA);
+			coolingDown 	= false;
+			calls++;
+		}
+
+		private synchronized void failed(final long coolDownNanos) {
+			errorRate 		= errorRate + ALPHA * (1 - errorRate);
+			coolingDown 	= true;
+			coolDownUntil 	= System.nanoTime() + coolDownNanos;
+			calls++;
+			errors++;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperledger.fabric.client.GatewayException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.grpc.Status;
+
+/*
+ * HTTP/JSON front end of the public reads. Every request is a single
+ * evaluate, routed to one of the org's peers and coalesced with identical
+ * requests in flight, and the chaincode's JSON is returned as is. Paginated reads return
+ * one page; pass the returned bookmark to get the next one.
+ *
+ * With a ready local index, the first page of a lookup by name or national
+ * ID is answered from it instead: all matches in one page, with the
+ * blockHeight they reflect. Lookups by institution are only served locally.
+ *
+ *   GET  /diplomas?pageSize=&bookmark=
+ *   GET  /diplomas/by-name?firstName=&lastName=&pageSize=&bookmark=
+ *   GET  /diplomas/by-national-id?nationalID=&pageSize=&bookmark=
+ *   GET  /diplomas/by-institution?institution=
+ *   GET  /diplomas/lookup?ids=<id>,<id>,...
+ *   GET  /verify?hash=<document hash>
+ *   POST /verify  with the diploma JSON from a printout as the body
+ *   GET  /health
+ *
+ * Any request may pass timeoutMs to shorten or extend its deadline, within
+ * minDeadline and maxDeadline, so that no caller can make healthy peers
+ * look slow. Requests run on a fixed pool of workers; when its queue is
+ * full, the accepting thread runs the request itself, which stops it from
+ * accepting more until a worker is free.
+ */
+final class VerificationServer {
+
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+	// The chaincode's MAX_PAGE_SIZE: the most records a page or a lookup may ask for.
+	private static final int MAX_PAGE_SIZE = 1000;
+	// The peer reports a chaincode that rejected the request, e.g. for a bad
+	// page size or an unknown diploma, with this in the error message.
+	private static final String CHAINCODE_ERROR = "chaincode response 500";
+
+	private final CoalescingEvaluator evaluator;
+	private final PeerPool peers;
+	// Null when the local index is not enabled.
+	private final DiplomaIndex index;
+	private final int pageSize;
+	private final Duration defaultDeadline;
+	private final Duration minDeadline;
+	private final Duration maxDeadline;
+
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+
+	VerificationServer(final CoalescingEvaluator evaluator
+					 , final PeerPool peers
+					 , final DiplomaIndex index
+					 , final int port
+					 , final int threads
+					 , final int pageSize
+					 , final Duration defaultDeadline
+					 , final Duration minDeadline
+					 , final Duration maxDeadline) throws IOException {
+
+		this.evaluator 			= evaluator;
+		this.peers 				= peers;
+		this.index 				= index;
+		this.pageSize 			= pageSize;
+		this.defaultDeadline 	= defaultDeadline;
+		this.minDeadline 		= minDeadline;
+		this.maxDeadline 		= maxDeadline;
+
+		AtomicInteger workerCount = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS
+											, new ArrayBlockingQueue<>(threads * 16)
+											, task -> new Thread(task, "http-" + workerCount.incrementAndGet())
+											, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.setExecutor(workers);
+		this.server.createContext("/", this::handle);
+	}
+
+	void start() {
+		server.start();
+		System.out.println("Serving diploma verification on port " + server.getAddress().getPort());
+	}
+
+	// Stops accepting connections, gives requests in progress up to grace to
+	// finish and then stops the workers.
+	void stop(final Duration grace) throws InterruptedException {
+		server.stop((int) Math.max(1, grace.toSeconds()));
+		workers.shutdown();
+		if (!workers.awaitTermination(grace.toMillis(), TimeUnit.MILLISECONDS)) {
+			workers.shutdownNow();
+		}
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+
+		try {
+			route(exchange);
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (GatewayException e) {
+			sendError(exchange, statusOf(e), describe(e));
+		} catch (CoalescingEvaluator.DeadlineExceededException e) {
+			sendError(exchange, 504, e.getMessage());
+		} catch (RuntimeException e) {
+			sendError(exchange, 500, String.valueOf(e.getMessage()));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void route(final HttpExchange exchange) throws IOException, GatewayException {
+
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		Duration deadline = deadline(query);
+
+		if (path.equals("/health")) {
+			JsonObject health = new JsonObject();
+			health.addProperty("status", "UP");
+			health.addProperty("peerCalls", evaluator.getPeerCalls());
+			health.addProperty("coalesced", evaluator.getCoalesced());
+			health.addProperty("reused", evaluator.getReused());
+			var peerHealth = new JsonArray();
+			long now = System.nanoTime();
+			for (var peer : peers.getPeers()) {
+				JsonObject status = new JsonObject();
+				status.addProperty("endpoint", peer.getName());
+				status.addProperty("healthy", peer.isHealthy(now));
+				status.addProperty("latencyMs", peer.getLatencyMillis());
+				status.addProperty("errorRate", peer.getErrorRate());
+				status.addProperty("calls", peer.getCalls());
+				status.addProperty("errors", peer.getErrors());
+				peerHealth.add(status);
+			}
+			health.add("peers", peerHealth);
+			if (index != null) {
+				health.addProperty("indexReady", index.isReady());
+				health.addProperty("indexBlockHeight", index.getBlockHeight());
+				health.addProperty("indexedDiplomas", index.size());
+			}
+			send(exchange, 200, health.toString().getBytes(UTF_8));
+		} else if (!method.equals("GET") && !(method.equals("POST") && path.equals("/verify"))) {
+			sendError(exchange, 405, "Method " + method + " is not allowed on " + path);
+		} else if (path.equals("/diplomas")) {
+			send(exchange, 200, evaluate(deadline, "getAllDiplomasWithPagination"
+									   , pageSize(query), bookmark(query)));
+		} else if (path.equals("/diplomas/by-name") && isLocal(query)) {
+			sendLocal(exchange, index.byName(required(query, "firstName"), required(query, "lastName")));
+		} else if (path.equals("/diplomas/by-name")) {
+			send(exchange, 200, evaluate(deadline, "queryDiplomasByNameWithPagination"
+									   , required(query, "firstName"), required(query, "lastName")
+									   , pageSize(query), bookmark(query)));
+		} else if (path.equals("/diplomas/by-national-id") && isLocal(query)) {
+			sendLocal(exchange, index.byNationalID(required(query, "nationalID")));
+		} else if (path.equals("/diplomas/by-national-id")) {
+			send(exchange, 200, evaluate(deadline, "queryDiplomasByNationalIDWithPagination"
+									   , required(query, "nationalID")
+									   , pageSize(query), bookmark(query)));
+		} else if (path.equals("/diplomas/by-institution")) {
+			if (index == null) {
+				sendError(exchange, 404, "The local diploma index is not enabled");
+			} else if (!index.isReady()) {
+				sendError(exchange, 503, "The local diploma index is not ready");
+			} else {
+				sendLocal(exchange, index.byInstitution(required(query, "institution")));
+			}
+		} else if (path.equals("/diplomas/lookup")) {
+			var ids = new JsonArray();
+			for (String diplomaID : required(query, "ids").split(",")) {
+				if (!diplomaID.isBlank()) {
+					ids.add(diplomaID.trim());
+				}
+			}
+			if (ids.size() > MAX_PAGE_SIZE) {
+				throw new IllegalArgumentException("At most " + MAX_PAGE_SIZE + " diplomas can be looked up at once");
+			}
+			send(exchange, 200, evaluate(deadline, "readDiplomas", ids.toString()));
+		} else if (path.equals("/verify") && method.equals("GET")) {
+			send(exchange, 200, evaluate(deadline, "verifyDiplomaByHash", required(query, "hash")));
+		} else if (path.equals("/verify")) {
+			send(exchange, 200, evaluate(deadline, "verifyDiplomaDocument", readBody(exchange)));
+		} else {
+			sendError(exchange, 404, "No such resource " + path);
+		}
+	}
+
+	private byte[] evaluate(final Duration deadline
+						  , final String function
+						  , final String... args) throws GatewayException {
+
+		return evaluator.evaluate(deadline, function, args);
+	}
+
+	// Local pages are not split, so only a first page can come from the index.
+	private boolean isLocal(final Map<String, String> query) {
+		return index != null && index.isReady() && bookmark(query).isEmpty();
+	}
+
+	private void sendLocal(final HttpExchange exchange
+						 , final DiplomaIndex.Matches matches) throws IOException {
+
+		var records = new JsonArray();
+		matches.records.forEach(records::add);
+
+		JsonObject page = new JsonObject();
+		page.add("records", records);
+		page.addProperty("fetchedRecordsCount", records.size());
+		page.addProperty("bookmark", "");
+		page.addProperty("blockHeight", matches.blockHeight);
+		send(exchange, 200, page.toString().getBytes(UTF_8));
+	}
+
+	private Duration deadline(final Map<String, String> query) {
+
+		String timeout = query.get("timeoutMs");
+		if (timeout == null) {
+			return defaultDeadline;
+		}
+		Duration requested = Duration.ofMillis(positive(timeout, "timeoutMs"));
+		if (requested.compareTo(minDeadline) < 0) {
+			return minDeadline;
+		}
+		return requested.compareTo(maxDeadline) > 0 ? maxDeadline : requested;
+	}
+
+	private String pageSize(final Map<String, String> query) {
+		String requested = query.get("pageSize");
+		if (requested == null) {
+			return Integer.toString(pageSize);
+		}
+		int size = positive(requested, "pageSize");
+		if (size > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("pageSize must be at most " + MAX_PAGE_SIZE);
+		}
+		return Integer.toString(size);
+	}
+
+	private static String bookmark(final Map<String, String> query) {
+		return query.getOrDefault("bookmark", "");
+	}
+
+	private static int positive(final String value, final String name) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number > 0) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException(name + " must be a positive number");
+	}
+
+	private static String required(final Map<String, String> query, final String name) {
+		String value = query.get(name);
+		if (value == null || value.isBlank()) {
+			throw new IllegalArgumentException("Missing query parameter " + name);
+		}
+		return value;
+	}
+
+	private static Map<String, String> parseQuery(final String rawQuery) {
+
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return query;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			query.put(URLDecoder.decode(name, UTF_8), URLDecoder.decode(value, UTF_8));
+		}
+		return query;
+	}
+
+	private static String readBody(final HttpExchange exchange) throws IOException {
+
+		try (InputStream body = exchange.getRequestBody()) {
+			byte[] bytes = body.readNBytes(MAX_BODY_BYTES + 1);
+			if (bytes.length > MAX_BODY_BYTES) {
+				throw new IllegalArgumentException("The request body is larger than " + MAX_BODY_BYTES + " bytes");
+			}
+			String document = new String(bytes, UTF_8).trim();
+			if (document.isEmpty()) {
+				throw new IllegalArgumentException("No diploma given");
+			}
+			return document;
+		}
+	}
+
+	// A chaincode error is the caller's, so it is not reported as an upstream
+	// failure: 404 for a diploma that does not exist, 400 for anything else.
+	private static int statusOf(final GatewayException e) {
+
+		Status.Code code = e.getStatus() == null ? Status.Code.UNKNOWN : e.getStatus().getCode();
+		switch (code) {
+			case DEADLINE_EXCEEDED:
+				return 504;
+			case UNAVAILABLE:
+			case RESOURCE_EXHAUSTED:
+				return 503;
+			case ABORTED:
+			case UNKNOWN:
+				String description = describe(e);
+				if (description.contains(CHAINCODE_ERROR)) {
+					return description.contains("does not exist") ? 404 : 400;
+				}
+				return 502;
+			default:
+				return 502;
+		}
+	}
+
+	private static String describe(final GatewayException e) {
+
+		StringBuilder message = new StringBuilder(String.valueOf(e.getMessage()));
+		for (var detail : e.getDetails()) {
+			message.append("; ").append(detail.getMessage());
+		}
+		return message.toString();
+	}
+
+	private static void sendError(final HttpExchange exchange
+								, final int status
+								, final String message) throws IOException {
+
+		JsonObject error = new JsonObject();
+		error.addProperty("error", message);
+		send(exchange, status, error.toString().getBytes(UTF_8));
+	}
+
+	private static void send(final HttpExchange exchange
+						   , final int status
+						   , final byte[] body) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import io.grpc.Grpc;
 import io.grpc.ManagedChannel;
@@ -12,22 +13,30 @@ import org.hyperledger.fabric.client.EndorseException;
 import org.hyperledger.fabric.client.Gateway;
 import org.hyperledger.fabric.client.GatewayException;
 import org.hyperledger.fabric.client.SubmitException;
+import org.hyperledger.fabric.client.Transaction;
 import org.hyperledger.fabric.client.identity.Identities;
 import org.hyperledger.fabric.client.identity.Identity;
 import org.hyperledger.fabric.client.identity.Signer;
 import org.hyperledger.fabric.client.identity.Signers;
 import org.hyperledger.fabric.client.identity.X509Identity;
+import org.hyperledger.fabric.protos.peer.ProcessedTransaction;
+import org.hyperledger.fabric.protos.peer.TxValidationCode;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.InvalidKeyException;
 import java.security.cert.CertificateException;
-import java.time.Instant;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.naming.spi.DirStateFactory.Result;
@@ -35,6 +44,11 @@ import javax.naming.spi.DirStateFactory.Result;
 import java.util.Scanner;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.sql.*;
 
 public final class App {
@@ -59,49 +73,169 @@ public final class App {
 		Paths.get("peers/peer0.org1.example.com/tls/ca.crt")
 	);
 
-	// Gateway peer end point.
-	private static final String PEER_ENDPOINT = "localhost:7051";
-	private static final String OVERRIDE_AUTH = "peer0.org1.example.com";
+	// Gateway peer end points, as host:port=TLS host name separated by commas. The first
+	// one takes the submits and event streams; evaluates go to the fastest healthy one.
+	private static final String PEER_ENDPOINTS = System.getenv().getOrDefault("PEER_ENDPOINTS", "localhost:7051=peer0.org1.example.com");
+	// How long a peer that failed an evaluate is left out of the routing.
+	private static final long PEER_COOL_DOWN_MS = Long.parseLong(System.getenv().getOrDefault("PEER_COOL_DOWN_MS", "5000"));
+
+	// Number of records fetched per evaluate when walking paginated queries.
+	private static final int PAGE_SIZE = Integer.parseInt(System.getenv().getOrDefault("PAGE_SIZE", "100"));
+	// Number of diplomas sent in a single createDiplomas transaction (the chaincode accepts at most 500).
+	private static final int BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("BATCH_SIZE", "100"));
+	// Number of issuing transactions that may wait for their commit status at the same time.
+	private static final int SUBMIT_WINDOW = Integer.parseInt(System.getenv().getOrDefault("SUBMIT_WINDOW", "16"));
+	// Number of those transactions that may be endorsed and submitted to the peer at the same time.
+	// MySQL concurrency is bounded separately by DB_POOL_SIZE.
+	private static final int PEER_CONCURRENCY = Integer.parseInt(System.getenv().getOrDefault("PEER_CONCURRENCY", "4"));
+	// Directory of the per-date issuance journals used to resume interrupted runs.
+	private static final Path JOURNAL_DIR = Paths.get(System.getenv().getOrDefault("JOURNAL_DIR", "journal"));
+	// Sizing of the duplicate filter: the number of diplomas it is built for (at least twice
+	// the number found on the ledger) and its false positive rate.
+	private static final long DUPLICATE_FILTER_CAPACITY = Long.parseLong(System.getenv().getOrDefault("DUPLICATE_FILTER_CAPACITY", "100000"));
+	private static final double DUPLICATE_FILTER_FPP = Double.parseDouble(System.getenv().getOrDefault("DUPLICATE_FILTER_FPP", "0.01"));
+
+	// How diplomas read from the ledger are printed: pretty, ndjson or raw (see DiplomaOutput).
+	private static final String OUTPUT_FORMAT = System.getenv().getOrDefault("OUTPUT_FORMAT", "pretty");
+
+	// Total size of the evaluate results kept by the read cache (64 MiB).
+	private static final long READ_CACHE_BYTES = Long.parseLong(System.getenv().getOrDefault("READ_CACHE_BYTES", "67108864"));
 
 	// Database connection details
 	private static final String DB_URL = "jdbc:mysql://localhost:3306/bureau" +
 											"?useSSL=false" + 
 											"&useJDBCCompliantTimezoneShift=true" + 
 											"&useLegacyDatetimeCode=false" + 
-											"&serverTimezone=Europe/Zagreb";
+											"&serverTimezone=Europe/Zagreb" + 
+											// Let Connector/J cache server-side prepared statements per connection
+											"&useServerPrepStmts=true" + 
+											"&cachePrepStmts=true" + 
+											"&prepStmtCacheSize=64" + 
+											"&prepStmtCacheSqlLimit=2048" + 
+											// Read large results through a server-side cursor, DB_FETCH_SIZE rows at a time
+											"&useCursorFetch=true";
 	// 3306 is the default port for MySQL
 	private static final String DB_USERNAME = "user";
 	private static final String DB_PASSWORD = "password";
-
+	// Upper bound on the MySQL connections held by the app
+	private static final int DB_POOL_SIZE = Integer.parseInt(System.getenv().getOrDefault("DB_POOL_SIZE", "4"));
+	// Number of rows fetched from MySQL at a time while streaming defences
+	private static final int DB_FETCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("DB_FETCH_SIZE", "500"));
+	// Bounds of the institution path cache; INSTITUTION_CACHE_TTL is in minutes
+	private static final int INSTITUTION_CACHE_SIZE = Integer.parseInt(System.getenv().getOrDefault("INSTITUTION_CACHE_SIZE", "10000"));
+	private static final long INSTITUTION_CACHE_TTL = Long.parseLong(System.getenv().getOrDefault("INSTITUTION_CACHE_TTL", "60"));
+
+	private static final String[] PATCHABLE_FIELDS = {
+		"nationalID", "firstName", "lastName", "dateOfBirth", "placeOfBirth", "dateOfIssue",
+		"institution", "course", "level", "degree"
+	};
+
+	private final PeerPool peers;
 	private final Contract contract;
-	private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	private final Contract qscc;
+	private final DiplomaReadCache readCache;
+	private final HikariDataSource dataSource;
+	private final InstitutionPathCache institutions;
+	private final BureauDatabase database;
+	private final DiplomaOutput output = new DiplomaOutput(System.out, DiplomaOutput.Format.parse(OUTPUT_FORMAT));
+	private final Gson compactGson = new Gson();
+
+	// Outcome counts of the current issuance run, updated by the pipeline listeners
+	private int created;
+	private int notCreated;
+	// Those of notCreated that were already on the ledger
+	private int alreadyIssued;
+	// Natural keys of the diplomas on the ledger, loaded by the first issuance run
+	private DiplomaKeyFilter duplicates;
+	private long definitelyNew;
+	private long maybePresent;
+	private long confirmedExisting;
+
+	// Rows of each createDiplomas batch in flight, by pipeline label
+	private final Map<String, List<DiplomaRecord>> batches = new ConcurrentHashMap<>();
 
 	public static void main(final String[] args) throws Exception {
-		// The gRPC client connection should be shared by all Gateway connections to
-		// this endpoint.
-		var channel = newGrpcConnection();
+		// Any arguments select the non-interactive batch mode; check them before
+		// connecting.
+		BatchRunner batch = null;
+		if (args.length > 0) {
+			try {
+				batch = BatchRunner.fromArgs(args);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.err.println(BatchRunner.USAGE);
+				System.exit(2);
+			}
+		}
 
-		var builder = Gateway.newInstance().identity(newIdentity()).signer(newSigner()).connection(channel)
-				// Default timeouts for different gRPC calls
-				.evaluateOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
-				.endorseOptions(options -> options.withDeadlineAfter(15, TimeUnit.SECONDS))
-				.submitOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
-				.commitStatusOptions(options -> options.withDeadlineAfter(1, TimeUnit.MINUTES));
+		var identity = newIdentity();
+		var signer = newSigner();
+		var peers = new PeerPool(CHANNEL_NAME, CHAINCODE_NAME, Duration.ofMillis(PEER_COOL_DOWN_MS));
+
+		boolean succeeded = true;
+		try (peers; var dataSource = newDataSource()) {
+			for (var endpoint : PeerPool.parseEndpoints(PEER_ENDPOINTS)) {
+				// The gRPC client connection should be shared by all Gateway connections to
+				// this endpoint.
+				var channel = newGrpcConnection(endpoint[0], endpoint[1]);
+
+				var gateway = Gateway.newInstance().identity(identity).signer(signer).connection(channel)
+						// Default timeouts for different gRPC calls
+						.evaluateOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
+						.endorseOptions(options -> options.withDeadlineAfter(15, TimeUnit.SECONDS))
+						.submitOptions(options -> options.withDeadlineAfter(5, TimeUnit.SECONDS))
+						.commitStatusOptions(options -> options.withDeadlineAfter(1, TimeUnit.MINUTES))
+						.connect();
+				peers.add(endpoint[0], channel, gateway);
+			}
 
-		try (var gateway = builder.connect()) {
-			new App(gateway).run();
-		} finally {
-			channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+			var app = new App(peers, dataSource);
+			try {
+				if (batch == null) {
+					app.run();
+				} else {
+					app.preloadInstitutions();
+					succeeded = batch.run(app);
+				}
+			} finally {
+				app.readCache.close();
+			}
+		}
+		if (!succeeded) {
+			System.exit(1);
 		}
 	}
 
-	private static ManagedChannel newGrpcConnection() throws IOException {
+	private static HikariDataSource newDataSource() {
+		var config = new HikariConfig();
+		config.setJdbcUrl(DB_URL);
+		config.setUsername(DB_USERNAME);
+		config.setPassword(DB_PASSWORD);
+		config.setPoolName("bureau");
+		config.setMaximumPoolSize(DB_POOL_SIZE);
+		config.setMinimumIdle(1);
+		// Fail a lookup instead of waiting forever when every connection is in use
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(30));
+		// Health checks: validate idle connections periodically and before they are
+		// handed out, and retire them before MySQL's wait_timeout closes them
+		config.setKeepaliveTime(TimeUnit.MINUTES.toMillis(2));
+		config.setValidationTimeout(TimeUnit.SECONDS.toMillis(3));
+		config.setMaxLifetime(TimeUnit.MINUTES.toMillis(30));
+		// Don't fail startup if MySQL is down; only the issuing paths need it
+		config.setInitializationFailTimeout(-1);
+		return new HikariDataSource(config);
+	}
+
+	// The org's peers share a TLS CA, so its certificate verifies any of them.
+	private static ManagedChannel newGrpcConnection(final String endpoint, final String overrideAuth) throws IOException {
 		var credentials = TlsChannelCredentials.newBuilder()
 				.trustManager(TLS_CERT_PATH.toFile())
 				.build();
-		return Grpc.newChannelBuilder(PEER_ENDPOINT, credentials)
-				.overrideAuthority(OVERRIDE_AUTH)
-				.build();
+		var builder = Grpc.newChannelBuilder(endpoint, credentials);
+		if (overrideAuth != null) {
+			builder.overrideAuthority(overrideAuth);
+		}
+		return builder.build();
 	}
 
 	private static Identity newIdentity() throws IOException, CertificateException {
@@ -124,20 +258,37 @@ public final class App {
 		}
 	}
 
-	public App(final Gateway gateway) {
+	public App(final PeerPool peers, final HikariDataSource dataSource) {
+		this.peers = peers;
+		this.dataSource = dataSource;
+		this.institutions = new InstitutionPathCache(dataSource
+												   , INSTITUTION_CACHE_SIZE
+												   , Duration.ofMinutes(INSTITUTION_CACHE_TTL));
+		this.database = new BureauDatabase(dataSource, institutions, DB_FETCH_SIZE);
+
 		// Get a network instance representing the channel where the smart contract is
 		// deployed.
-		var network = gateway.getNetwork(CHANNEL_NAME);
+		var network = peers.getPrimary().getNetwork(CHANNEL_NAME);
 
 		// Get the smart contract from the network.
 		contract = network.getContract(CHAINCODE_NAME);
+		// The system chaincode that looks up transactions by ID.
+		qscc = network.getContract("qscc");
+
+		// Repeated reads are served locally until a chaincode event says the
+		// diplomas they returned have changed. Cached reads go to the primary,
+		// which the events come from.
+		readCache = new DiplomaReadCache(peers::evaluate, contract::evaluateTransaction, network, CHAINCODE_NAME, READ_CACHE_BYTES);
+		readCache.start();
 	}
 
 	public void run() throws GatewayException, CommitException, SQLException, Exception, DateTimeParseException {
 
+		preloadInstitutions();
+
 		Scanner sc = new Scanner(System.in);
 		while (true) {
-			System.out.println("Enter: r to read diploma by ID");
+			System.out.println("Enter: r to read diplomas by ID");
 			System.out.println("       a to read all diplomas");
 			System.out.println("       p to read diploma by the 'primary key'");
 			System.out.println("       n to read diploma by the owner's name");
@@ -146,20 +297,22 @@ public final class App {
 			System.out.println("       t to create diplomas by date of defence of thesis");
 			System.out.println("       u to update a diploma");
 			System.out.println("       d to delete a diploma");
+			System.out.println("       m to show database connection pool and cache metrics");
+			System.out.println("       c to reload the institution path cache");
 			System.out.println("       x to exit");
 
 			String str = sc.nextLine();
 
 			if (str.equals("r")) {
-				System.out.println("Insert diploma ID:");
-				String diplomaID = sc.nextLine();
+				System.out.println("Insert diploma IDs separated by spaces or commas:");
+				String diplomaIDs = sc.nextLine();
 				try {
-					System.out.println(readDiploma(diplomaID));
+					readDiplomas(parseDiplomaIDs(diplomaIDs));
 				} catch(Exception e) {
 					System.out.println("ERROR reading diploma: " + e.getMessage());
 				}
 			} else if (str.equals("a")) {
-				System.out.println(getAllDiplomas());
+				getAllDiplomas();
 			} else if (str.equals("p")) {
 				System.out.println("Insert national ID:");
 				String nationalID = sc.nextLine();
@@ -169,21 +322,18 @@ public final class App {
 				String course = sc.nextLine();
 				System.out.println("Insert level:");
 				String level = sc.nextLine();
-				System.out.println(readDiplomaByPrimKey(  nationalID
-														, institution
-														, course
-														, level));
+				readDiplomaByPrimKey(nationalID, institution, course, level);
 			} else if (str.equals("n")) {
 				System.out.println("Insert first name:");
 				String firstName = sc.nextLine();
 				System.out.println("Insert last name:");
 				String lastName = sc.nextLine();
-				System.out.println(readDiplomaByName( firstName
-													, lastName));
+				readDiplomaByName( firstName
+								 , lastName);
 			} else if (str.equals("i")) {
 				System.out.println("Insert national ID:");
 				String nationalID = sc.nextLine();
-				System.out.println(readDiplomaByNationalID(nationalID));
+				readDiplomaByNationalID(nationalID);
 			} else if (str.equals("s")) {
 				System.out.println("Insert student ID:");
 				String studentID = sc.nextLine();
@@ -200,41 +350,25 @@ public final class App {
 			} else if (str.equals("u")) {
 				System.out.println("Insert diplomaID:");
 				String diplomaID = sc.nextLine();
-				System.out.println("Insert nationalID:");
-				String nationalID = sc.nextLine();
-				System.out.println("Insert firstName:");
-				String firstName = sc.nextLine();
-				System.out.println("Insert lastName:");
-				String lastName = sc.nextLine();
-				System.out.println("Insert dateOfBirth:");
-				String dateOfBirth = sc.nextLine();
-				System.out.println("Insert placeOfBirth:");
-				String placeOfBirth = sc.nextLine();
-				System.out.println("Insert dateOfIssue:");
-				String dateOfIssue = sc.nextLine();
-				System.out.println("Insert institution:");
-				String institution = sc.nextLine();
-				System.out.println("Insert course:");
-				String course = sc.nextLine();
-				System.out.println("Insert level:");
-				String level = sc.nextLine();
-				System.out.println("Insert degree:");
-				String degree = sc.nextLine();
-				updateDiploma(diplomaID
-							, nationalID
-							, firstName
-							, lastName
-							, dateOfBirth
-							, placeOfBirth
-							, dateOfIssue
-							, institution
-							, course
-							, level
-							, degree);
+				System.out.println("Insert the new value of each field, or leave it empty to keep the current value.");
+				Map<String, String> changes = new LinkedHashMap<>();
+				for (String field : PATCHABLE_FIELDS) {
+					System.out.println("Insert " + field + ":");
+					String value = sc.nextLine();
+					if (!value.isEmpty()) {
+						changes.put(field, value);
+					}
+				}
+				patchDiploma(diplomaID, changes, "");
 			} else if (str.equals("d")) {
 				System.out.println("Insert diploma ID:");
 				String diplomaID = sc.nextLine();
 				deleteDiploma(diplomaID);
+			} else if (str.equals("m")) {
+				printPoolMetrics();
+			} else if (str.equals("c")) {
+				institutions.invalidateAll();
+				preloadInstitutions();
 			} else if (str.equals("x")) {
 				System.out.println("Bye");
 				break;
@@ -243,340 +377,547 @@ public final class App {
 		sc.close();
 	}
 
-	private String prettyJson(final byte[] json) {
-		return prettyJson(new String(json, StandardCharsets.UTF_8));
+	// Reads the diplomas in chunks of PAGE_SIZE IDs, one evaluate per chunk.
+	private void readDiplomas(List<String> diplomaIDs) throws GatewayException {
+
+		for (int from = 0; from < diplomaIDs.size(); from += PAGE_SIZE) {
+			var chunk = diplomaIDs.subList(from, Math.min(from + PAGE_SIZE, diplomaIDs.size()));
+			Set<String> tags = new HashSet<>();
+			for (var diplomaID : chunk) {
+				tags.add(DiplomaReadCache.idTag(diplomaID));
+			}
+			var result = readCache.evaluate(tags, "readDiplomas", compactGson.toJson(chunk));
+
+			output.printLookup(result);
+		}
 	}
 
-	private String prettyJson(final String json) {
-		var parsedJson = JsonParser.parseString(json);
-		return gson.toJson(parsedJson);
+	private static List<String> parseDiplomaIDs(String line) {
+		List<String> diplomaIDs = new ArrayList<>();
+		for (String diplomaID : line.trim().split("[,\\s]+")) {
+			if (!diplomaID.isEmpty()) {
+				diplomaIDs.add(diplomaID);
+			}
+		}
+		return diplomaIDs;
 	}
 
-	private String readDiploma(String diplomaID) throws GatewayException {
+	private void getAllDiplomas() throws GatewayException {
 
-		var result = contract.evaluateTransaction("readDiploma", diplomaID);
-		return prettyJson(result);
+		printPages(new DiplomaPages(readCache.evaluator(DiplomaReadCache.ALL), PAGE_SIZE, "getAllDiplomasWithPagination"));
 	}
 
-	private String getAllDiplomas() throws GatewayException {
+	private void printPages(final DiplomaPages pages) throws GatewayException {
 
-		var result = contract.evaluateTransaction("getAllDiplomas");
-		return prettyJson(result);
+		while (pages.hasNext()) {
+			pages.next(output);
+			output.flush();
+		}
+		System.out.println(pages.getFetchedCount() + " diplomas found");
 	}
 
-	private String readDiplomaByPrimKey(  String nationalID
+	private void readDiplomaByPrimKey(  String nationalID
 										, String institution
 										, String course
 										, String level) throws GatewayException {
 
-		var result = contract.evaluateTransaction("queryDiplomasByPrimKey"
-												, nationalID
-												, institution
-												, course
-												, level);
-		return prettyJson(result);
+		var result = readCache.evaluate(Set.of(DiplomaReadCache.nationalIDTag(nationalID))
+									  , "queryDiplomasByPrimKey"
+									  , nationalID
+									  , institution
+									  , course
+									  , level);
+		output.print(result);
 	}
 
-	private String readDiplomaByName( String firstName
+	private void readDiplomaByName(   String firstName
 									, String lastName) throws GatewayException {
 
-		var result = contract.evaluateTransaction("queryDiplomasByName"
-												, firstName
-												, lastName);
-		return prettyJson(result);
-	}
-
-	private String readDiplomaByNationalID(String nationalID) throws GatewayException {
-
-		var result = contract.evaluateTransaction("queryDiplomasByNationalID", nationalID);
-		return prettyJson(result);
-	}
-
-	private Map<String, String> fromStudentPrepStmtResults(String studentID) throws SQLException, Exception {
-		Connection c = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-		PreparedStatement stmt = c.prepareStatement(
-			"SELECT nationalID, firstName, lastName, dateOfBirth, placeOfBirth, institutionID " +
-			"  FROM student " +
-			" WHERE studentID = ?;"
-		);
-		stmt.setString(1, studentID);
-		ResultSet rs = stmt.executeQuery();
-
-		int rowCount = 0;
-		if (rs.last()) {
-			rowCount = rs.getRow();
-		}
-		if (rowCount == 0) {
-			throw new Exception("Student with studentID " + studentID + " does not exist");
-		}
-		
-		rs.first(); // only one row expected as 'studentID' is the primary key
-		Map<String, String> attributes = new HashMap<>();
-		attributes.put("nationalID", rs.getString("nationalID"));
-		attributes.put("firstName", rs.getString("firstName"));
-		attributes.put("lastName", rs.getString("lastName"));
-		attributes.put("dateOfBirth", rs.getString("dateOfBirth"));
-		attributes.put("placeOfBirth", rs.getString("placeOfBirth"));
-		attributes.put("institutionID", rs.getString("institutionID"));
-
-		c.close();
-		return attributes;
-	}
-
-	private Map<String, String> fromCoursePrepStmtResults(Integer courseID, Integer institutuionID) throws SQLException {
-		Connection c = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-		PreparedStatement stmt = c.prepareStatement(
-			"SELECT courseName, levelOfStudy " +
-			"  FROM course " +
-			" WHERE courseID = ?" +
-			"   AND institutionID = ?;"
-		);
-		stmt.setInt(1, courseID);
-		stmt.setInt(2, institutuionID);
-		ResultSet rs = stmt.executeQuery();
-		
-		rs.first();
-		Map<String, String> attributes = new HashMap<>();
-		attributes.put("courseName", rs.getString("courseName"));
-		attributes.put("levelOfStudy", rs.getString("levelOfStudy"));
-
-		c.close();
-		return attributes;
-	}
-
-	private Map<String, String> fromInstitutionPrepStmtResults(Integer institutionID) throws SQLException {
-		Connection c = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-		PreparedStatement stmt = c.prepareStatement(
-			"SELECT institutionName, parentInstitutionID " +
-			"  FROM institution " +
-			" WHERE institutionID = ?;"
-		);
-		stmt.setInt(1, institutionID);
-		ResultSet rs = stmt.executeQuery();
-
-		rs.first();
-		Map<String, String> attributes = new HashMap<>();
-		attributes.put("institutionName", rs.getString("institutionName"));
-		attributes.put("parentInstitutionID", rs.getString("parentInstitutionID"));
-
-		c.close();
-		return attributes;
-	}
-	
-	private void createDiplomaByStudentID(String studentID) throws SQLException, Exception {
+		printPages(new DiplomaPages(readCache.evaluator(DiplomaReadCache.nameTag(firstName, lastName))
+								  , PAGE_SIZE
+								  , "queryDiplomasByNameWithPagination"
+								  , firstName
+								  , lastName));
+	}
+
+	private void readDiplomaByNationalID(String nationalID) throws GatewayException {
+
+		printPages(new DiplomaPages(readCache.evaluator(DiplomaReadCache.nationalIDTag(nationalID))
+								  , PAGE_SIZE
+								  , "queryDiplomasByNationalIDWithPagination"
+								  , nationalID));
+	}
+
+	private void printPoolMetrics() {
+		var pool = dataSource.getHikariPoolMXBean();
+		if (pool == null) {
+			System.out.println("The database connection pool has not been started yet");
+		} else {
+			System.out.println("Database connections: " + pool.getActiveConnections() + " active, " 
+													+ pool.getIdleConnections() + " idle, " 
+													+ pool.getTotalConnections() + " total (max " + DB_POOL_SIZE + "), " 
+													+ pool.getThreadsAwaitingConnection() + " threads waiting");
+		}
+		System.out.println("Institution path cache: " + institutions.size() + " entries, " 
+												+ institutions.getHits() + " hits, " 
+												+ institutions.getMisses() + " misses");
+		System.out.println("Read cache: " + readCache.size() + " entries (" + readCache.getBytes() + " bytes), " 
+										+ readCache.getHits() + " hits, " 
+										+ readCache.getMisses() + " misses, " 
+										+ readCache.getInvalidations() + " invalidating events" 
+										+ (readCache.isLive() ? "" : " (event stream not connected, not caching)"));
+		for (var peer : peers.getPeers()) {
+			System.out.println(String.format("Peer %s: %.1f ms average, %.0f%% errors, %d calls, %d failed%s"
+											, peer.getName()
+											, peer.getLatencyMillis()
+											, peer.getErrorRate() * 100
+											, peer.getCalls()
+											, peer.getErrors()
+											, peer.isHealthy(System.nanoTime()) ? "" : " (left out)"));
+		}
+		if (duplicates != null) {
+			System.out.println("Duplicate filter: " + duplicates.getKeys() + " keys in " 
+												+ duplicates.getBits() + " bits (" + duplicates.getHashes() + " hashes), " 
+												+ definitelyNew + " definitely new, " 
+												+ maybePresent + " maybe present, " 
+												+ confirmedExisting + " confirmed existing");
+		}
+	}
+
+	// Institution paths are also resolved on a miss, so a failed preload only
+	// costs extra queries later.
+	private void preloadInstitutions() {
+		try {
+			System.out.println("Loaded " + institutions.preload() + " institution paths");
+		} catch (SQLException e) {
+			System.out.println("WARNING: unable to preload institution paths: " + e.getMessage());
+		}
+	}
+
+	private void createDiplomaByStudentID(String studentID) {
+		try {
+			issueByStudentID(studentID);
+		} catch (Exception e) {
+			System.out.println("ERROR while creating diploma by ID: " + e.getMessage());
+		}
+	}
+
+	void issueByStudentID(String studentID) throws Exception {
+
+		created = notCreated = alreadyIssued = 0;
+		// A student has only a few diplomas; they are confirmed directly instead
+		// of loading the duplicate filter, unless a bulk run already has.
+
+		System.out.println("... querying the local relational database ...");
+		try (var diplomas = database.diplomasOfStudents(List.of(studentID));
+			 var pipeline = new IssuancePipeline(contract, SUBMIT_WINDOW, PEER_CONCURRENCY, this::printIssued)) {
+
+			List<DiplomaRecord> candidates = new ArrayList<>();
+			diplomas.forEach(candidates::add);
+			if (candidates.isEmpty()) {
+				throw new Exception("Student with studentID " + studentID + " does not exist or has not defended any theses");
+			}
+
+			Map<String, DiplomaRecord> existing = new LinkedHashMap<>();
+			List<DiplomaRecord> issue = withoutExisting(candidates, existing);
+			for (var diplomaID : existing.keySet()) {
+				var diploma = existing.get(diplomaID);
+				String message = "The diploma " + diplomaID + " already exists";
+				pipeline.report(new IssuancePipeline.Outcome(diploma.course + " (" + diploma.level + ")", null
+															, message.getBytes(StandardCharsets.UTF_8), true, ""));
+			}
+
+			for (var diploma : issue) {
+				diploma.dateOfIssue = LocalDate.now().toString();
+
+				// The chaincode derives the diploma ID from nationalID, institution, course
+				// and level, and rejects the transaction if that diploma already exists.
+				pipeline.submit(diploma.course + " (" + diploma.level + ")"
+							  , "issueDiploma"
+							  , diploma.nationalID
+							  , diploma.firstName
+							  , diploma.lastName
+							  , diploma.dateOfBirth
+							  , diploma.placeOfBirth
+							  , diploma.dateOfIssue
+							  , diploma.institution
+							  , diploma.course
+							  , diploma.level
+							  , diploma.degree);
+			}
+			pipeline.drain();
+			printSummary();
+		}
+	}
+
+	private void printIssued(IssuancePipeline.Outcome outcome) {
+		if (outcome.successful && outcome.transactionId == null) {
+			// Reported by issueByStudentID for a diploma that is already on the ledger.
+			notCreated++;
+			alreadyIssued++;
+			System.out.println("Diploma for " + outcome.label + " was not created: " + outcome.resultAsString());
+		} else if (outcome.successful) {
+			readCache.invalidateAll();
+			created++;
+			System.out.println("Successfully created new diploma " + outcome.resultAsString());
+		} else {
+			notCreated++;
+			System.out.println("Diploma for " + outcome.label + " was not created: " + outcome.message);
+		}
+	}
+
+	private void printSummary() {
+		System.out.println(created + " diplomas created, " + notCreated + " not created ("
+						 + alreadyIssued + " already issued)");
+	}
+
+	// Every run for a date is journaled. Rows that the journal shows as committed
+	// are skipped, and transactions whose outcome was never recorded are looked
+	// up by their ID before anything is resubmitted.
+	private void createDiplomasByDateOfDefence(String dateOfDefence) {
 		try {
+			issueByDateOfDefence(dateOfDefence);
+		} catch (Exception e) {
+			System.out.println(
+					"ERROR while creating diploma by date of defence: " + e.getMessage());
+		}
+	}
+
+	void issueByDateOfDefence(String dateOfDefence) throws Exception {
+
+		created = notCreated = alreadyIssued = 0;
+		try (var journal = IssuanceJournal.open(JOURNAL_DIR.resolve("defence-" + dateOfDefence + ".journal"))) {
+
+			resolveInDoubt(journal);
+			loadDuplicateFilter();
 
 			System.out.println("... querying the local relational database ...");
-			
-			Map<String, String> studentAttributes = new HashMap(fromStudentPrepStmtResults(studentID));
-			String nationalID 		= studentAttributes.get("nationalID");
-			String firstName 		= studentAttributes.get("firstName");
-			String lastName 		= studentAttributes.get("lastName");
-			String dateOfBirth 		= studentAttributes.get("dateOfBirth");
-			String placeOfBirth 	= studentAttributes.get("placeOfBirth");
-			String institutionID 	= studentAttributes.get("institutionID");
-			String institutionID2 	= institutionID;
-
-			String institution 			= "";
-			String parentInstitutionID 	= "";
-			boolean firstIteration 		= true;
-			do {
-				Map<String, String> institutionAttributes = new HashMap<>(
-					fromInstitutionPrepStmtResults(Integer.parseInt(institutionID)));
-				
-					if (firstIteration) {
-					firstIteration = false;
-				} else {
-					institution += ", ";
+			try (var diplomas = database.diplomasDefendedOn(dateOfDefence);
+				 var pipeline = new IssuancePipeline(contract, SUBMIT_WINDOW, PEER_CONCURRENCY
+												   , (label, transaction) -> journalSubmitted(journal, label, transaction)
+												   , outcome -> printCreated(journal, outcome))) {
+
+				boolean found = false;
+				int skipped = 0;
+				int batches = 0;
+				List<DiplomaRecord> batch = new ArrayList<>();
+				for (var diploma : (Iterable<DiplomaRecord>) diplomas::iterator) {
+					found = true;
+					var entry = journal.get(IssuanceJournal.keyOf(diploma));
+					if (entry != null && entry.state == IssuanceJournal.State.COMMITTED) {
+						skipped++;
+						continue;
+					}
+
+					// No diplomaID is sent; the chaincode derives it from the natural key and
+					// reports diplomas that already exist.
+					diploma.dateOfIssue = LocalDate.now().toString();
+					batch.add(diploma);
+
+					if (batch.size() >= BATCH_SIZE) {
+						createDiplomas(pipeline, journal, ++batches, batch);
+						batch = new ArrayList<>();
+					}
+				}
+				if (!batch.isEmpty()) {
+					createDiplomas(pipeline, journal, ++batches, batch);
+				}
+				if (!found) {
+					throw new Exception("No defences found on date " + dateOfDefence);
 				}
-				
-				institution += institutionAttributes.get("institutionName");
-				institutionID 	= parentInstitutionID 
-								= institutionAttributes.get("parentInstitutionID");
-			} while (parentInstitutionID != null);
-			
-			Connection c = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-			PreparedStatement stmt = c.prepareStatement(
-				"SELECT courseID, degree " +
-				"  FROM defenceOfThesis " +
-				" WHERE institutionID = ? " +
-				"   AND studentID = ? " +
-				"	AND grade IS NOT NULL " +
-				"ORDER BY dueDate DESC, dateOfDefence DESC, seq DESC;"
-			);
-			stmt.setInt(1, Integer.parseInt(institutionID2));
-			stmt.setString(2, studentID);
-			ResultSet rs = stmt.executeQuery();
-			
-			int rowCount = 0;
-			if (rs.last()) {
-				rowCount = rs.getRow();
-				rs.beforeFirst();
+				pipeline.drain();
+				if (skipped > 0) {
+					System.out.println(skipped + " diplomas were already issued by an earlier run");
+				}
+				printSummary();
+			}
+		}
+	}
+
+	int getCreated() {
+		return created;
+	}
+
+	int getNotCreated() {
+		return notCreated;
+	}
+
+	int getAlreadyIssued() {
+		return alreadyIssued;
+	}
+
+	// Scans the ledger once and builds the duplicate filter over it. Diplomas issued
+	// elsewhere afterwards are missed by the filter; they are still reported as
+	// existing by the chaincode. Only bulk runs load it: the scan costs more than
+	// confirming the few diplomas of a single student directly.
+	void loadDuplicateFilter() throws GatewayException {
+
+		if (duplicates != null) {
+			return;
+		}
+
+		System.out.println("... loading existing diplomas into the duplicate filter ...");
+		List<byte[]> keys = new ArrayList<>();
+		var pages = new DiplomaPages(peers::evaluate, PAGE_SIZE, "getAllDiplomasWithPagination");
+		while (pages.hasNext()) {
+			for (var element : pages.next()) {
+				var diploma = element.getAsJsonObject();
+				keys.add(DiplomaKeyFilter.naturalKeyHash(stringOrNull(diploma, "nationalID")
+													   , stringOrNull(diploma, "institution")
+													   , stringOrNull(diploma, "course")
+													   , stringOrNull(diploma, "level")));
 			}
-			if (rowCount == 0) {
-				throw new Exception("Student with studentID " + studentID + " has not defended any theses");
+		}
+
+		var filter = new DiplomaKeyFilter(Math.max(DUPLICATE_FILTER_CAPACITY, 2L * keys.size()), DUPLICATE_FILTER_FPP);
+		keys.forEach(filter::add);
+		duplicates = filter;
+		System.out.println("Duplicate filter loaded with " + keys.size() + " diplomas");
+	}
+
+	private static String stringOrNull(JsonObject object, String member) {
+		var value = object.get(member);
+		return value == null || value.isJsonNull() ? null : value.getAsString();
+	}
+
+	// Drops the diplomas that are already on the ledger and puts them into
+	// existing by diplomaID. Only the keys the duplicate filter may contain, or
+	// every key while it is not loaded, are confirmed, with one readDiplomas call
+	// per PAGE_SIZE keys. The filter also holds diplomas stored under legacy
+	// "diploma" + timestamp IDs, which readDiplomas cannot find by their natural
+	// ID, so a key it misses is looked up with queryDiplomasByPrimKey before the
+	// diploma is issued. Every remaining diploma is added to the filter right
+	// away; if it is not issued after all, that only costs a confirmation later.
+	// Nothing is printed or counted here: callers report the existing diplomas
+	// through the pipeline, so that its listener stays the only one to do that.
+	private List<DiplomaRecord> withoutExisting(List<DiplomaRecord> candidates
+											  , Map<String, DiplomaRecord> existing) throws GatewayException {
+
+		Map<String, DiplomaRecord> unsure = new LinkedHashMap<>();
+		for (var diploma : candidates) {
+			byte[] key = DiplomaKeyFilter.naturalKeyHash(diploma);
+			if (duplicates == null) {
+				unsure.put(DiplomaKeyFilter.naturalDiplomaID(key), diploma);
+			} else if (duplicates.mightContain(key)) {
+				maybePresent++;
+				unsure.put(DiplomaKeyFilter.naturalDiplomaID(key), diploma);
+			} else {
+				definitelyNew++;
 			}
-			while(rs.next()){
-				String courseID = rs.getString("courseID");
-				String degree = rs.getString("degree");
-				
-				Map<String, String> courseAttributes = new HashMap<>(
-					fromCoursePrepStmtResults(Integer.parseInt(courseID), Integer.parseInt(institutionID2)));
-				String courseName 	= courseAttributes.get("courseName");
-				String levelOfStudy = courseAttributes.get("levelOfStudy");
-				
-				System.out.println("... data from relational database retreived ...");
-	
-				System.out.println("... checking if diploma already exists ...");
-				String fromLedger = readDiplomaByPrimKey( nationalID
-														, institution
-														, courseName
-														, levelOfStudy);
-				if (!fromLedger.equals("[]")) {
-					System.out.println("Diploma with the given parameters already exists: " + fromLedger);
-					continue;
+		}
+
+		List<String> diplomaIDs = new ArrayList<>(unsure.keySet());
+		for (int from = 0; from < diplomaIDs.size(); from += PAGE_SIZE) {
+			var chunk = diplomaIDs.subList(from, Math.min(from + PAGE_SIZE, diplomaIDs.size()));
+			var result = peers.evaluate("readDiplomas", compactGson.toJson(chunk));
+			var lookup = JsonParser.parseString(new String(result, StandardCharsets.UTF_8)).getAsJsonObject();
+
+			for (var record : lookup.getAsJsonArray("records")) {
+				String diplomaID = record.getAsJsonObject().get("diplomaID").getAsString();
+				var diploma = unsure.remove(diplomaID);
+				if (diploma != null && existing.putIfAbsent(diplomaID, diploma) == null) {
+					confirmedExisting++;
 				}
-	
-				String diplomaID = "diploma" + Instant.now().toEpochMilli();
-				contract.submitTransaction("createDiploma"
-										, diplomaID
-										, nationalID
-										, firstName
-										, lastName
-										, dateOfBirth.toString()
-										, placeOfBirth
-										, LocalDate.now().toString()
-										, institution
-										, courseName
-										, levelOfStudy
-										, degree);
-				System.out.println("Successfully created new diploma " + diplomaID);
 			}
+		}
 
-			c.close();
+		for (var diploma : unsure.values()) {
+			var result = peers.evaluate("queryDiplomasByPrimKey"
+									  , diploma.nationalID
+									  , diploma.institution
+									  , diploma.course
+									  , diploma.level);
+			var records = JsonParser.parseString(new String(result, StandardCharsets.UTF_8)).getAsJsonArray();
+			if (records.size() > 0) {
+				String diplomaID = records.get(0).getAsJsonObject().get("diplomaID").getAsString();
+				if (existing.putIfAbsent(diplomaID, diploma) == null) {
+					confirmedExisting++;
+				}
+			}
+		}
 
-		} catch (Exception e) {
-			System.out.println("ERROR while creating diploma by ID: " + e.getMessage());
+		Set<DiplomaRecord> found = new HashSet<>(existing.values());
+		List<DiplomaRecord> issue = new ArrayList<>();
+		for (var diploma : candidates) {
+			if (!found.contains(diploma)) {
+				if (duplicates != null) {
+					duplicates.add(DiplomaKeyFilter.naturalKeyHash(diploma));
+				}
+				issue.add(diploma);
+			}
 		}
+		return issue;
 	}
 
-	private void createDiplomasByDateOfDefence(String dateOfDefence) {
+	private void resolveInDoubt(IssuanceJournal journal) throws IOException {
+
+		Map<String, List<IssuanceJournal.Entry>> byTransaction = new LinkedHashMap<>();
+		for (var entry : journal.inState(IssuanceJournal.State.SUBMITTED)) {
+			byTransaction.computeIfAbsent(entry.txId, txId -> new ArrayList<>()).add(entry);
+		}
+		if (byTransaction.isEmpty()) {
+			return;
+		}
+
+		System.out.println("... checking " + byTransaction.size() + " transactions left in doubt by an earlier run ...");
+		for (var transaction : byTransaction.entrySet()) {
+			boolean committed = isCommitted(transaction.getKey());
+			List<IssuanceJournal.Entry> resolved = new ArrayList<>();
+			for (var entry : transaction.getValue()) {
+				resolved.add(committed
+						? new IssuanceJournal.Entry(entry.key, IssuanceJournal.State.COMMITTED, entry.txId, entry.diplomaID, "")
+						: new IssuanceJournal.Entry(entry.key, IssuanceJournal.State.FAILED, entry.txId, null
+												  , "Transaction " + entry.txId + " was not committed"));
+			}
+			journal.append(resolved);
+		}
+	}
+
+	// A lookup that fails for any other reason also counts as not committed. That
+	// only costs a resubmission, which the chaincode reports as already existing.
+	private boolean isCommitted(String txId) {
 		try {
-			Connection c = DriverManager.getConnection(DB_URL, DB_USERNAME, DB_PASSWORD);
-			System.out.println("... querying the local relational database ...");
-			PreparedStatement stmt = c.prepareStatement(	
-				"SELECT institutionID, courseID, studentID, degree " +
-				"  FROM defenceOfThesis " +
-				" WHERE dateOfDefence = ? " +
-				"   AND grade IS NOT NULL;"
-			);
-			stmt.setString(1, dateOfDefence);
-			ResultSet rs = stmt.executeQuery();
-
-			int rowCount = 0;
-			if (rs.last()) {
-				rowCount = rs.getRow();
-				rs.beforeFirst();
+			var processed = ProcessedTransaction.parseFrom(
+					qscc.evaluateTransaction("GetTransactionByID", CHANNEL_NAME, txId));
+			return processed.getValidationCode() == TxValidationCode.VALID_VALUE;
+		} catch (GatewayException | InvalidProtocolBufferException e) {
+			return false;
+		}
+	}
+
+	private void createDiplomas(IssuancePipeline pipeline
+							  , IssuanceJournal journal
+							  , int batchNumber
+							  , List<DiplomaRecord> candidates) throws IOException, InterruptedException, GatewayException {
+
+		// Rows already on the ledger are reported like a committed batch whose
+		// every row exists, so they are counted, printed and journaled by the
+		// listener in order with the batches around them.
+		Map<String, DiplomaRecord> existing = new LinkedHashMap<>();
+		List<DiplomaRecord> batch = withoutExisting(candidates, existing);
+		if (!existing.isEmpty()) {
+			var results = new JsonArray();
+			for (var diplomaID : existing.keySet()) {
+				var item = new JsonObject();
+				item.addProperty("diplomaID", diplomaID);
+				item.addProperty("status", "EXISTS");
+				item.addProperty("message", "The diploma " + diplomaID + " already exists");
+				results.add(item);
 			}
-			if (rowCount == 0) {
-				throw new Exception("No defences found on date " + dateOfDefence);
+			String label = "batch " + batchNumber + " (already issued)";
+			batches.put(label, new ArrayList<>(existing.values()));
+			pipeline.report(new IssuancePipeline.Outcome(label, null, results.toString().getBytes(StandardCharsets.UTF_8), true, ""));
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		List<IssuanceJournal.Entry> pending = new ArrayList<>();
+		for (var diploma : batch) {
+			pending.add(new IssuanceJournal.Entry(IssuanceJournal.keyOf(diploma), IssuanceJournal.State.PENDING, null, null, ""));
+		}
+		journal.append(pending);
+
+		// Progress is only printed by the listener, in submission order, so that
+		// the output does not depend on commit timing.
+		String label = "batch " + batchNumber;
+		batches.put(label, batch);
+		pipeline.submit(label, "createDiplomas", compactGson.toJson(batch));
+	}
+
+	// The endorsed result already holds the diplomaID of every row, so the rows
+	// are journaled with the transaction ID before it is sent to the orderer. A
+	// crash after that leaves them SUBMITTED, to be looked up by resolveInDoubt;
+	// if the transaction never reached the orderer, the lookup marks them FAILED.
+	private void journalSubmitted(IssuanceJournal journal
+								, String label
+								, Transaction transaction) {
+
+		var rows = batches.get(label);
+		var results = JsonParser.parseString(new String(transaction.getResult(), StandardCharsets.UTF_8)).getAsJsonArray();
+
+		List<IssuanceJournal.Entry> submitted = new ArrayList<>();
+		for (int i = 0; i < rows.size(); i++) {
+			var item = results.get(i).getAsJsonObject();
+			String key = IssuanceJournal.keyOf(rows.get(i));
+			if (item.get("status").getAsString().equals("INVALID")) {
+				submitted.add(new IssuanceJournal.Entry(key, IssuanceJournal.State.FAILED, transaction.getTransactionId(), null
+													  , item.get("message").getAsString()));
+			} else {
+				submitted.add(new IssuanceJournal.Entry(key, IssuanceJournal.State.SUBMITTED, transaction.getTransactionId()
+													  , item.get("diplomaID").getAsString(), ""));
 			}
-			while (rs.next()) {
-				String institutionID 	= rs.getString("institutionID");
-				String institutionID2	= institutionID;
-				String courseID 		= rs.getString("courseID");
-				String studentID 		= rs.getString("studentID");
-				String degree 			= rs.getString("degree");
-
-				Statement stmt2 = c.createStatement();
-
-				String institution 			= "";
-				String parentInstitutionID 	= "";
-				boolean firstIteration 		= true;
-				do {
-					Map<String, String> institutionAttributes = new HashMap<>(
-						fromInstitutionPrepStmtResults(Integer.parseInt(institutionID)));
-
-					if (firstIteration) {
-						firstIteration = false;
-					} else {
-						institution += ", ";
-					}
-					
-					institution += institutionAttributes.get("institutionName");
-					institutionID = parentInstitutionID = institutionAttributes.get("parentInstitutionID");
-				} while (parentInstitutionID != null);
-
-				Map<String, String> courseAttributes = new HashMap<>(fromCoursePrepStmtResults(Integer.parseInt(courseID), Integer.parseInt(institutionID2)));
-				String courseName 	= courseAttributes.get("courseName");
-				String levelOfStudy = courseAttributes.get("levelOfStudy");
-
-				Map<String, String> studentAttributes = new HashMap(fromStudentPrepStmtResults(studentID));
-				String nationalID 		= studentAttributes.get("nationalID");
-				String firstName 		= studentAttributes.get("firstName");
-				String lastName 		= studentAttributes.get("lastName");
-				String dateOfBirth 		= studentAttributes.get("dateOfBirth");
-				String placeOfBirth 	= studentAttributes.get("placeOfBirth");
-
-				System.out.println("... creating diploma for " + nationalID + " ...");
-				String fromLedger = readDiplomaByPrimKey( nationalID
-														, institution
-														, courseName
-														, levelOfStudy);
-				if (!fromLedger.equals("[]")) {
-					System.out.println("Diploma with the given parameters already exists: " + fromLedger);
-					continue;
-				}
+		}
+		appendOrThrow(journal, submitted);
+	}
 
-				String diplomaID = "diploma" + Instant.now().toEpochMilli();
-				contract.submitTransaction("createDiploma"
-										, diplomaID
-										, nationalID
-										, firstName
-										, lastName
-										, dateOfBirth.toString()
-										, placeOfBirth
-										, LocalDate.now().toString()
-										, institution
-										, courseName
-										, levelOfStudy
-										, degree);
-				System.out.println("Successfully created new diploma " + diplomaID);
+	private void printCreated(IssuanceJournal journal
+							, IssuancePipeline.Outcome outcome) {
+
+		var rows = batches.remove(outcome.label);
+		List<IssuanceJournal.Entry> completed = new ArrayList<>();
+		if (!outcome.successful) {
+			notCreated += rows.size();
+			for (var diploma : rows) {
+				completed.add(new IssuanceJournal.Entry(IssuanceJournal.keyOf(diploma), IssuanceJournal.State.FAILED
+													  , outcome.transactionId, null, outcome.message));
 			}
+			appendOrThrow(journal, completed);
+			System.out.println("Diplomas in " + outcome.label + " were not created: " + outcome.message);
+			return;
+		}
 
-			c.close();
+		// Only a transaction can have changed the ledger.
+		if (outcome.transactionId != null) {
+			readCache.invalidateAll();
+		}
+		var results = JsonParser.parseString(outcome.resultAsString()).getAsJsonArray();
+		for (int i = 0; i < results.size(); i++) {
+			var item = results.get(i).getAsJsonObject();
+			String key = IssuanceJournal.keyOf(rows.get(i));
+			String diplomaID = item.get("diplomaID").isJsonNull() ? "" : item.get("diplomaID").getAsString();
+			String status = item.get("status").getAsString();
+			if (status.equals("CREATED")) {
+				created++;
+				System.out.println("Successfully created new diploma " + diplomaID);
+			} else {
+				notCreated++;
+				if (status.equals("EXISTS")) {
+					alreadyIssued++;
+				}
+				System.out.println("Diploma " + diplomaID + " was not created: " + item.get("message").getAsString());
+			}
+			// A diploma that already exists needs no retry either.
+			completed.add(status.equals("INVALID")
+					? new IssuanceJournal.Entry(key, IssuanceJournal.State.FAILED, outcome.transactionId, null
+											  , item.get("message").getAsString())
+					: new IssuanceJournal.Entry(key, IssuanceJournal.State.COMMITTED, outcome.transactionId, diplomaID, ""));
+		}
+		appendOrThrow(journal, completed);
+	}
 
-		} catch (Exception e) {
-			System.out.println(
-					"ERROR while creating diploma by date of defence: " + e.getMessage());
+	private static void appendOrThrow(IssuanceJournal journal
+									, List<IssuanceJournal.Entry> entries) {
+		try {
+			journal.append(entries);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 
-	private void updateDiploma(	  String diplomaID
-								, String nationalID
-								, String firstName
-								, String lastName
-								, String dateOfBirth
-								, String placeOfBirth
-								, String dateOfIssue
-								, String institution
-								, String course
-								, String level
-								, String degree) {
+	// Sends only the changed fields. If expectedVersion is not empty the chaincode
+	// rejects the patch when the diploma has been changed since that version.
+	private void patchDiploma(String diplomaID
+							, Map<String, String> changes
+							, String expectedVersion) {
+
+		if (changes.isEmpty()) {
+			System.out.println("Nothing to update");
+			return;
+		}
 
 		try {
-			contract.submitTransaction("updateDiploma"
-									, diplomaID
-									, nationalID
-									, firstName
-									, lastName
-									, dateOfBirth
-									, placeOfBirth
-									, dateOfIssue
-									, institution
-									, course
-									, level
-									, degree);
+			submitPatch(diplomaID, changes, expectedVersion);
 			System.out.println("Update successful");
 		} catch(EndorseException | SubmitException | CommitStatusException e) {
 			System.out.println("ERROR while updating diploma: ");
@@ -591,7 +932,7 @@ public final class App {
 	private void deleteDiploma(String diplomaID) {
 
 		try {
-			contract.submitTransaction("deleteDiploma", diplomaID);
+			submitDelete(diplomaID);
 			System.out.println("Delete successful");
 		} catch(EndorseException | SubmitException | CommitStatusException e) {
 			System.out.println("ERROR while deleting diploma: ");
@@ -602,4 +943,21 @@ public final class App {
 			System.out.println("ERROR while deleting diploma: " + e.getMessage());
 		}
 	}
+
+	void submitPatch(String diplomaID
+				   , Map<String, String> changes
+				   , String expectedVersion) throws GatewayException, CommitException {
+
+		contract.submitTransaction("patchDiploma"
+								, diplomaID
+								, compactGson.toJson(changes)
+								, expectedVersion);
+		// Don't wait for the event to drop what this app itself just changed.
+		readCache.invalidateAll();
+	}
+
+	void submitDelete(String diplomaID) throws GatewayException, CommitException {
+		contract.submitTransaction("deleteDiploma", diplomaID);
+		readCache.invalidateAll();
+	}
 }
@@ -0,0 +1,328 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hyperledger.fabric.client.GatewayException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/*
+ * Non-interactive mode of the Org1 gateway. Reads one operation per line from
+ * a CSV or NDJSON file, runs it through the same code as the menu and writes
+ * one NDJSON result line per operation, with its outcome and duration. The
+ * input is read line by line, so its size is not limited by memory.
+ *
+ * CSV lines (fields may be double-quoted, empty lines and lines starting with
+ * '#' are skipped):
+ *
+ *   student,<studentID>
+ *   date,<YYYY-MM-dd>
+ *   update,<diplomaID>,<expectedVersion>,<field>,<value>[,<field>,<value>...]
+ *   delete,<diplomaID>
+ *
+ * NDJSON lines:
+ *
+ *   {"op":"student","studentID":"..."}
+ *   {"op":"date","date":"YYYY-MM-dd"}
+ *   {"op":"update","diplomaID":"...","changes":{"field":"value"},"expectedVersion":"..."}
+ *   {"op":"delete","diplomaID":"..."}
+ *
+ * The status of a result is OK, ERROR when the operation threw, or for
+ * student and date, PARTIAL or FAILED when some or all of the diplomas that
+ * were not already issued failed to be issued.
+ */
+final class BatchRunner {
+
+	static final String USAGE =
+		"Usage: App --batch <file> [--format csv|ndjson] [--results <file>]\n" +
+		"  --format   defaults to ndjson for .ndjson and .jsonl files, csv otherwise\n" +
+		"  --results  defaults to <file>.results.ndjson";
+
+	enum Format { CSV, NDJSON }
+
+	private final Path input;
+	private final Format format;
+	private final Path results;
+
+	private final Gson gson = new Gson();
+
+	private BatchRunner(final Path input
+					  , final Format format
+					  , final Path results) {
+
+		this.input 		= input;
+		this.format 	= format;
+		this.results 	= results;
+	}
+
+	static BatchRunner fromArgs(final String[] args) {
+
+		Path input = null;
+		Format format = null;
+		Path results = null;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+				case "--batch":
+					input = Paths.get(value);
+					break;
+				case "--format":
+					try {
+						format = Format.valueOf(value.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Unknown format " + value);
+					}
+					break;
+				case "--results":
+					results = Paths.get(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+
+		if (input == null) {
+			throw new IllegalArgumentException("No input file given");
+		}
+		if (!Files.isReadable(input)) {
+			throw new IllegalArgumentException("Cannot read " + input);
+		}
+		if (format == null) {
+			String name = input.getFileName().toString();
+			format = name.endsWith(".ndjson") || name.endsWith(".jsonl") ? Format.NDJSON : Format.CSV;
+		}
+		if (results == null) {
+			results = Paths.get(input + ".results.ndjson");
+		}
+		return new BatchRunner(input, format, results);
+	}
+
+	// Returns whether every operation succeeded.
+	boolean run(final App app) throws IOException {
+
+		int operations = 0;
+		int failed = 0;
+		long started = System.nanoTime();
+
+		try (BufferedReader reader = Files.newBufferedReader(input, UTF_8);
+			 BufferedWriter writer = Files.newBufferedWriter(results, UTF_8)) {
+
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isBlank() || (format == Format.CSV && line.startsWith("#"))) {
+					continue;
+				}
+
+				operations++;
+				JsonObject result = execute(app, lineNumber, line);
+				if (!result.get("status").getAsString().equals("OK")) {
+					failed++;
+				}
+				writer.write(gson.toJson(result));
+				writer.newLine();
+				writer.flush();
+			}
+		}
+
+		double seconds = (System.nanoTime() - started) / 1e9;
+		System.out.println(String.format("%d operations in %.1f s (%.2f operations/s), %d failed; results in %s"
+									   , operations, seconds, operations / Math.max(seconds, 1e-9), failed, results));
+		return failed == 0;
+	}
+
+	private JsonObject execute(final App app
+							 , final int lineNumber
+							 , final String line) {
+
+		JsonObject result = new JsonObject();
+		result.addProperty("line", lineNumber);
+
+		long started = System.nanoTime();
+		try {
+			Operation operation = format == Format.CSV ? fromCsv(line) : fromJson(line);
+			result.addProperty("op", operation.type);
+			result.addProperty("key", operation.key);
+
+			switch (operation.type) {
+				case "student":
+					// Many students are issued in a batch, so the duplicate filter pays for its load.
+					app.loadDuplicateFilter();
+					app.issueByStudentID(operation.key);
+					addIssuance(result, app);
+					break;
+				case "date":
+					LocalDate.parse(operation.key);
+					app.issueByDateOfDefence(operation.key);
+					addIssuance(result, app);
+					break;
+				case "update":
+					if (operation.changes.isEmpty()) {
+						throw new IllegalArgumentException("Nothing to update");
+					}
+					app.submitPatch(operation.key, operation.changes, operation.expectedVersion);
+					break;
+				case "delete":
+					app.submitDelete(operation.key);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown operation " + operation.type);
+			}
+			if (!result.has("status")) {
+				result.addProperty("status", "OK");
+			}
+		} catch (Exception e) {
+			result.addProperty("status", "ERROR");
+			result.addProperty("message", describe(e));
+		}
+		result.addProperty("millis", (System.nanoTime() - started) / 1_000_000);
+		return result;
+	}
+
+	// OK only when nothing failed to be issued; diplomas that were already
+	// issued are not failures.
+	private static void addIssuance(final JsonObject result
+								  , final App app) {
+
+		int failed = app.getNotCreated() - app.getAlreadyIssued();
+		result.addProperty("created", app.getCreated());
+		result.addProperty("notCreated", app.getNotCreated());
+		result.addProperty("alreadyIssued", app.getAlreadyIssued());
+		if (failed > 0) {
+			result.addProperty("status", app.getCreated() > 0 ? "PARTIAL" : "FAILED");
+			result.addProperty("message", failed + " diplomas failed to be issued");
+		}
+	}
+
+	private static String describe(final Exception e) {
+
+		StringBuilder message = new StringBuilder(String.valueOf(e.getMessage()));
+		if (e instanceof GatewayException) {
+			for (var detail : ((GatewayException) e).getDetails()) {
+				message.append("; ").append(detail.getMessage());
+			}
+		}
+		return message.toString();
+	}
+
+	private static Operation fromCsv(final String line) {
+
+		List<String> fields = splitCsv(line);
+		String type = fields.get(0).trim();
+		if (fields.size() < 2 || fields.get(1).isEmpty()) {
+			throw new IllegalArgumentException("Missing argument for " + type);
+		}
+
+		Operation operation = new Operation(type, fields.get(1));
+		if (type.equals("update")) {
+			if (fields.size() % 2 != 1) {
+				throw new IllegalArgumentException("Expected update,<diplomaID>,<expectedVersion> followed by field,value pairs");
+			}
+			operation.expectedVersion = fields.get(2);
+			for (int i = 3; i < fields.size(); i += 2) {
+				operation.changes.put(fields.get(i), fields.get(i + 1));
+			}
+		} else if (fields.size() > 2) {
+			throw new IllegalArgumentException("Too many fields for " + type);
+		}
+		return operation;
+	}
+
+	private static Operation fromJson(final String line) {
+
+		JsonObject object = JsonParser.parseString(line).getAsJsonObject();
+		String type = string(object, "op");
+
+		String keyMember;
+		switch (type) {
+			case "student": keyMember = "studentID"; break;
+			case "date": 	keyMember = "date"; break;
+			default: 		keyMember = "diplomaID"; break;
+		}
+		String key = string(object, keyMember);
+		if (key.isEmpty()) {
+			throw new IllegalArgumentException("Missing " + keyMember + " for " + type);
+		}
+
+		Operation operation = new Operation(type, key);
+		if (type.equals("update")) {
+			operation.expectedVersion = string(object, "expectedVersion");
+			if (object.has("changes")) {
+				for (var change : object.getAsJsonObject("changes").entrySet()) {
+					operation.changes.put(change.getKey(), change.getValue().getAsString());
+				}
+			}
+		}
+		return operation;
+	}
+
+	private static String string(final JsonObject object
+							   , final String member) {
+		var value = object.get(member);
+		return value == null || value.isJsonNull() ? "" : value.getAsString();
+	}
+
+	// Splits one CSV record. Quoted fields may contain commas and "" for a quote.
+	static List<String> splitCsv(final String line) {
+
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Unterminated quoted field");
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	private static final class Operation {
+
+		final String type;
+		final String key;
+		final Map<String, String> changes = new LinkedHashMap<>();
+		String expectedVersion = "";
+
+		Operation(final String type, final String key) {
+			this.type 	= type;
+			this.key 	= key;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.sql.DataSource;
+
+/*
+ * Reads everything needed to issue diplomas from the bureau database in a
+ * single set-based query: defences joined with student and course. The
+ * comma-joined institution path ("Faculty, University") is taken from the
+ * InstitutionPathCache; a miss is resolved on the streaming connection
+ * itself, which a cursor fetch leaves free for other statements, so a stream
+ * never holds more than one pooled connection.
+ *
+ * Rows are read through a forward-only, read-only cursor, fetchSize rows at a
+ * time (the connection needs useCursorFetch=true), so a stream can be
+ * consumed while the rest of the result is still on the server. The returned
+ * streams hold a connection until they are closed, so use them in
+ * try-with-resources. SQL errors while streaming are rethrown as
+ * DatabaseException.
+ */
+final class BureauDatabase {
+
+	private static final String DIPLOMA_RECORDS =
+		"SELECT d.studentID, s.nationalID, s.firstName, s.lastName, s.dateOfBirth, s.placeOfBirth " +
+		"     , d.institutionID, c.courseName, c.levelOfStudy, d.degree " +
+		"  FROM defenceOfThesis d " +
+		"  JOIN student s ON s.studentID = d.studentID " +
+		"  JOIN course c ON c.courseID = d.courseID " +
+		"               AND c.institutionID = d.institutionID " +
+		" WHERE d.grade IS NOT NULL ";
+
+	private final DataSource dataSource;
+	private final InstitutionPathCache institutions;
+	private final int fetchSize;
+
+	BureauDatabase(final DataSource dataSource
+				 , final InstitutionPathCache institutions
+				 , final int fetchSize) {
+
+		this.dataSource 	= dataSource;
+		this.institutions 	= institutions;
+		this.fetchSize 		= fetchSize;
+	}
+
+	// All graded defences on the given date (YYYY-MM-dd).
+	Stream<DiplomaRecord> diplomasDefendedOn(final String dateOfDefence) throws SQLException {
+
+		return query(DIPLOMA_RECORDS +
+					 "   AND d.dateOfDefence = ? " +
+					 " ORDER BY d.institutionID, d.courseID, d.studentID;"
+				   , Collections.singletonList(dateOfDefence));
+	}
+
+	// All graded defences of the given students at the institution each of them
+	// is enrolled in, latest first.
+	Stream<DiplomaRecord> diplomasOfStudents(final List<String> studentIDs) throws SQLException {
+
+		if (studentIDs.isEmpty()) {
+			return Stream.empty();
+		}
+
+		String placeholders = String.join(", ", Collections.nCopies(studentIDs.size(), "?"));
+		return query(DIPLOMA_RECORDS +
+					 "   AND d.institutionID = s.institutionID " +
+					 "   AND d.studentID IN (" + placeholders + ") " +
+					 " ORDER BY d.studentID, d.dueDate DESC, d.dateOfDefence DESC, d.seq DESC;"
+				   , studentIDs);
+	}
+
+	private Stream<DiplomaRecord> query(final String sql
+									  , final List<String> parameters) throws SQLException {
+
+		Connection c = dataSource.getConnection();
+		try {
+			PreparedStatement stmt = c.prepareStatement(sql
+													  , ResultSet.TYPE_FORWARD_ONLY
+													  , ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(fetchSize);
+			for (int i = 0; i < parameters.size(); i++) {
+				stmt.setString(i + 1, parameters.get(i));
+			}
+			ResultSet rs = stmt.executeQuery();
+
+			return StreamSupport.stream(new Records(c, rs, institutions), false)
+								.onClose(() -> close(c));
+		} catch (SQLException | RuntimeException e) {
+			close(c);
+			throw e;
+		}
+	}
+
+	private static void close(final Connection c) {
+		try {
+			c.close();
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	private static final class Records extends Spliterators.AbstractSpliterator<DiplomaRecord> {
+
+		private final Connection c;
+		private final ResultSet rs;
+		private final InstitutionPathCache institutions;
+
+		Records(final Connection c
+			  , final ResultSet rs
+			  , final InstitutionPathCache institutions) {
+
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.c 				= c;
+			this.rs 			= rs;
+			this.institutions 	= institutions;
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super DiplomaRecord> action) {
+			try {
+				if (!rs.next()) {
+					return false;
+				}
+
+				DiplomaRecord diploma = new DiplomaRecord();
+				diploma.studentID 		= rs.getString("studentID");
+				diploma.nationalID 		= rs.getString("nationalID");
+				diploma.firstName 		= rs.getString("firstName");
+				diploma.lastName 		= rs.getString("lastName");
+				diploma.dateOfBirth 	= rs.getString("dateOfBirth");
+				diploma.placeOfBirth 	= rs.getString("placeOfBirth");
+				diploma.institution 	= institutions.get(rs.getInt("institutionID"), c);
+				diploma.course 			= rs.getString("courseName");
+				diploma.level 			= rs.getString("levelOfStudy");
+				diploma.degree 			= rs.getString("degree");
+
+				action.accept(diploma);
+				return true;
+			} catch (SQLException e) {
+				throw new DatabaseException(e);
+			}
+		}
+	}
+
+	static final class DatabaseException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		DatabaseException(final SQLException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+}
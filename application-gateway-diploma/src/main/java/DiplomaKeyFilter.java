@@ -0,0 +1,109 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Bloom filter over the natural keys (nationalID, institution, course, level)
+ * of the diplomas on the ledger. mightContain() never misses a key that was
+ * added; it reports a key that was not added with roughly the false positive
+ * rate the filter was sized for.
+ *
+ * The key hash is the same SHA-256 the chaincode derives diploma IDs from, so
+ * naturalDiplomaID() gives the ID to confirm a possible duplicate with.
+ */
+final class DiplomaKeyFilter {
+
+	private static final int NATURAL_ID_BYTES = 16;
+
+	private final long[] words;
+	private final long bits;
+	private final int hashes;
+	private long keys;
+
+	DiplomaKeyFilter(final long expectedKeys
+				   , final double falsePositiveRate) {
+
+		long n = Math.max(expectedKeys, 1);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+
+		this.words 	= new long[(int) ((m + 63) / 64)];
+		this.bits 	= words.length * 64L;
+		this.hashes = Math.max(1, (int) Math.round((double) bits / n * ln2));
+	}
+
+	static byte[] naturalKeyHash(final String nationalID
+							   , final String institution
+							   , final String course
+							   , final String level) {
+
+		String naturalKey = String.join("\u0000"
+									  , valueOrEmpty(nationalID)
+									  , valueOrEmpty(institution)
+									  , valueOrEmpty(course)
+									  , valueOrEmpty(level));
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(naturalKey.getBytes(UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static byte[] naturalKeyHash(final DiplomaRecord diploma) {
+		return naturalKeyHash(diploma.nationalID, diploma.institution, diploma.course, diploma.level);
+	}
+
+	// Same as the chaincode's getNaturalDiplomaID.
+	static String naturalDiplomaID(final byte[] naturalKeyHash) {
+		StringBuilder hex = new StringBuilder("diploma");
+		for (int i = 0; i < NATURAL_ID_BYTES; i++) {
+			hex.append(String.format("%02x", naturalKeyHash[i]));
+		}
+		return hex.toString();
+	}
+
+	synchronized void add(final byte[] naturalKeyHash) {
+
+		ByteBuffer hash = ByteBuffer.wrap(naturalKeyHash);
+		long h1 = hash.getLong(0);
+		long h2 = hash.getLong(8);
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			words[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		keys++;
+	}
+
+	synchronized boolean mightContain(final byte[] naturalKeyHash) {
+
+		ByteBuffer hash = ByteBuffer.wrap(naturalKeyHash);
+		long h1 = hash.getLong(0);
+		long h2 = hash.getLong(8);
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	synchronized long getKeys() {
+		return keys;
+	}
+
+	long getBits() {
+		return bits;
+	}
+
+	int getHashes() {
+		return hashes;
+	}
+
+	private static String valueOrEmpty(final String value) {
+		return value == null ? "" : value;
+	}
+}
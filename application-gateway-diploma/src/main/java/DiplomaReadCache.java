@@ -0,0 +1,307 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hyperledger.fabric.client.ChaincodeEvent;
+import org.hyperledger.fabric.client.CloseableIterator;
+import org.hyperledger.fabric.client.GatewayException;
+import org.hyperledger.fabric.client.InMemoryCheckpointer;
+import org.hyperledger.fabric.client.Network;
+import org.hyperledger.fabric.protos.common.BlockchainInfo;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/*
+ * LRU cache of evaluate results, bounded by their total size in bytes, since
+ * a single result can be a page of up to 1000 diplomas. It is kept correct by
+ * the chaincode events that every create, update and delete sets. Each cached
+ * result is tagged with the diploma IDs, national IDs and names it depends
+ * on; an event drops the results tagged with any of the diplomas it lists,
+ * plus every full scan.
+ *
+ * Results are only cached while the event stream is connected. It starts at
+ * the block height read just before it is opened. When it breaks the cache
+ * is emptied, and the stream is reopened from the last event seen.
+ *
+ * Misses that may be cached are evaluated on the peer the events come from,
+ * so a cached result is never older than the events already applied: another
+ * peer may lag behind and return a diploma whose invalidating event has
+ * already gone by. While the stream is down, misses go to the whole pool.
+ */
+final class DiplomaReadCache implements AutoCloseable {
+
+	// Tag of results that depend on every diploma, like getAllDiplomas.
+	static final String ALL = "*";
+
+	private final DiplomaPages.Evaluator peers;
+	// The peer the events come from.
+	private final DiplomaPages.Evaluator eventPeer;
+	private final Network network;
+	private final String chaincodeName;
+	private final long maxBytes;
+
+	// In access order, eldest first.
+	private final Map<String, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	// Bumped on every invalidation, so a result read before one is not cached after it.
+	private long generation;
+
+	private final InMemoryCheckpointer checkpointer = new InMemoryCheckpointer();
+	private boolean eventSeen;
+	private volatile boolean live;
+	private volatile boolean closed;
+	private volatile CloseableIterator<ChaincodeEvent> events;
+	private final Thread listener;
+
+	private final AtomicLong hits 			= new AtomicLong();
+	private final AtomicLong misses 		= new AtomicLong();
+	private final AtomicLong invalidations 	= new AtomicLong();
+
+	DiplomaReadCache(final DiplomaPages.Evaluator peers
+				   , final DiplomaPages.Evaluator eventPeer
+				   , final Network network
+				   , final String chaincodeName
+				   , final long maxBytes) {
+
+		this.peers 			= peers;
+		this.eventPeer 		= eventPeer;
+		this.network 		= network;
+		this.chaincodeName 	= chaincodeName;
+		this.maxBytes 		= maxBytes;
+
+		this.listener = new Thread(this::listen, "diploma-events");
+		this.listener.setDaemon(true);
+	}
+
+	static String idTag(final String diplomaID) {
+		return "id:" + diplomaID;
+	}
+
+	static String nationalIDTag(final String nationalID) {
+		return "nationalID:" + nationalID;
+	}
+
+	static String nameTag(final String firstName, final String lastName) {
+		return "name:" + lastName + "\u0000" + firstName;
+	}
+
+	void start() {
+		listener.start();
+	}
+
+	byte[] evaluate(final Set<String> tags
+				  , final String function
+				  , final String... args) throws GatewayException {
+
+		String key = function + "\u0000" + String.join("\u0000", args);
+		long readGeneration;
+		boolean cacheable;
+		synchronized (this) {
+			CachedResult cached = results.get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached.value;
+			}
+			readGeneration = generation;
+			cacheable = live;
+		}
+
+		misses.incrementAndGet();
+		byte[] value = (cacheable ? eventPeer : peers).evaluate(function, args);
+
+		synchronized (this) {
+			if (cacheable && live && generation == readGeneration && value.length <= maxBytes) {
+				put(key, new CachedResult(value, tags));
+			}
+		}
+		return value;
+	}
+
+	// For walking paginated queries through the cache.
+	DiplomaPages.Evaluator evaluator(final String... tags) {
+		Set<String> tagSet = Set.of(tags);
+		return (function, args) -> evaluate(tagSet, function, args);
+	}
+
+	synchronized void invalidateAll() {
+		generation++;
+		results.clear();
+		bytes = 0;
+	}
+
+	synchronized int size() {
+		return results.size();
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	boolean isLive() {
+		return live;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		var current = events;
+		if (current != null) {
+			current.close();
+		}
+		listener.interrupt();
+	}
+
+	private void listen() {
+
+		while (!closed) {
+			var request = network.newChaincodeEventsRequest(chaincodeName);
+			try {
+				if (eventSeen) {
+					request.checkpoint(checkpointer);
+				} else {
+					// Left to itself the stream starts wherever the peer is once it
+					// gets to the request, and a write committed before that would
+					// invalidate nothing cached meanwhile. Every block from the
+					// current height on is delivered, and results are only cached
+					// after it was taken.
+					request.startBlock(blockHeight());
+				}
+			} catch (GatewayException | InvalidProtocolBufferException | RuntimeException e) {
+				System.out.println("WARNING: unable to read the block height for the diploma event stream: " + e.getMessage());
+				if (!pause()) {
+					return;
+				}
+				continue;
+			}
+
+			try (var stream = request.build().getEvents()) {
+				events = stream;
+				live = true;
+				while (stream.hasNext()) {
+					var event = stream.next();
+					invalidate(event);
+					checkpointer.checkpointChaincodeEvent(event);
+					eventSeen = true;
+				}
+			} catch (RuntimeException e) {
+				if (!closed) {
+					System.out.println("WARNING: diploma event stream interrupted: " + e.getMessage());
+				}
+			} finally {
+				live = false;
+				events = null;
+				invalidateAll();
+			}
+
+			if (!pause()) {
+				return;
+			}
+		}
+	}
+
+	// The number of the next block to be committed on the peer the events come from.
+	private long blockHeight() throws GatewayException, InvalidProtocolBufferException {
+		byte[] info = network.getContract("qscc").evaluateTransaction("GetChainInfo", network.getName());
+		return BlockchainInfo.parseFrom(info).getHeight();
+	}
+
+	// Waits before the stream is reopened; false once the cache is closed.
+	private boolean pause() {
+		try {
+			TimeUnit.SECONDS.sleep(1);
+			return !closed;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private void invalidate(final ChaincodeEvent event) {
+
+		List<String> tags = new ArrayList<>();
+		tags.add(ALL);
+		try {
+			for (var element : JsonParser.parseString(new String(event.getPayload(), UTF_8)).getAsJsonArray()) {
+				var diploma = element.getAsJsonObject();
+				tags.add(idTag(string(diploma, "diplomaID")));
+				tags.add(nationalIDTag(string(diploma, "nationalID")));
+				tags.add(nameTag(string(diploma, "firstName"), string(diploma, "lastName")));
+			}
+		} catch (RuntimeException e) {
+			// An event we cannot read could have changed anything.
+			invalidations.incrementAndGet();
+			invalidateAll();
+			return;
+		}
+
+		synchronized (this) {
+			generation++;
+			results.values().removeIf(cached -> {
+				for (String tag : tags) {
+					if (cached.tags.contains(tag)) {
+						bytes -= cached.value.length;
+						return true;
+					}
+				}
+				return false;
+			});
+		}
+		invalidations.incrementAndGet();
+	}
+
+	// Adds a result and drops the least recently used ones until the cache
+	// fits into maxBytes again.
+	private synchronized void put(final String key
+								, final CachedResult cached) {
+
+		CachedResult replaced = results.put(key, cached);
+		if (replaced != null) {
+			bytes -= replaced.value.length;
+		}
+		bytes += cached.value.length;
+
+		Iterator<CachedResult> eldest = results.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().value.length;
+			eldest.remove();
+		}
+	}
+
+	private static String string(final JsonObject object
+							   , final String member) {
+		var value = object.get(member);
+		return value == null || value.isJsonNull() ? "" : value.getAsString();
+	}
+
+	private static final class CachedResult {
+
+		final byte[] value;
+		final Set<String> tags;
+
+		CachedResult(final byte[] value, final Set<String> tags) {
+			this.value 	= value;
+			this.tags 	= tags;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+
+/*
+ * A diploma ready to be issued, as assembled from the bureau database. The
+ * field names match the chaincode's Diploma, so a record serializes directly
+ * into a createDiplomas batch; studentID is only kept for reporting.
+ */
+final class DiplomaRecord {
+
+	transient String studentID;
+
+	String nationalID;
+	String firstName;
+	String lastName;
+	String dateOfBirth;
+	String placeOfBirth;
+	String dateOfIssue;
+
+	String institution;
+	String course;
+	String level;
+	String degree;
+}
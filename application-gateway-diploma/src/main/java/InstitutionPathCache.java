@@ -0,0 +1,170 @@
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/*
+ * Caches the comma-joined path of every institution ("Faculty, University"),
+ * keyed by institutionID. The institution table is small and rarely changes,
+ * so the whole table is preloaded once and every later lookup is a map hit.
+ *
+ * Entries expire after the given TTL and the least recently used entry is
+ * evicted once the cache is full. A miss resolves just that institution,
+ * on a pooled connection or on one the caller already holds.
+ */
+final class InstitutionPathCache {
+
+	// The anchor selects the institutions to resolve; a row is complete once
+	// nextID is NULL.
+	private static final String INSTITUTION_PATHS =
+		"WITH RECURSIVE institutionPath (institutionID, nextID, path) AS ( " +
+		"    SELECT institutionID, parentInstitutionID, CAST(institutionName AS CHAR(2000)) " +
+		"      FROM institution " +
+		"     %s " +
+		"    UNION ALL " +
+		"    SELECT p.institutionID, i.parentInstitutionID, CONCAT(p.path, ', ', i.institutionName) " +
+		"      FROM institutionPath p " +
+		"      JOIN institution i ON i.institutionID = p.nextID " +
+		") " +
+		"SELECT institutionID, path " +
+		"  FROM institutionPath " +
+		" WHERE nextID IS NULL;";
+
+	private final DataSource dataSource;
+	private final int maxSize;
+	private final long ttlNanos;
+
+	private final Map<Integer, CachedPath> paths;
+
+	private final AtomicLong hits 		= new AtomicLong();
+	private final AtomicLong misses 	= new AtomicLong();
+
+	InstitutionPathCache(final DataSource dataSource
+					   , final int maxSize
+					   , final Duration ttl) {
+
+		this.dataSource = dataSource;
+		this.maxSize 	= maxSize;
+		this.ttlNanos 	= ttl.toNanos();
+		this.paths 		= new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Integer, CachedPath> eldest) {
+				return size() > InstitutionPathCache.this.maxSize;
+			}
+		};
+	}
+
+	// Loads the path of every institution, returns how many were loaded.
+	int preload() throws SQLException {
+
+		Map<Integer, String> loaded = query(String.format(INSTITUTION_PATHS, ""), null);
+		long expires = System.nanoTime() + ttlNanos;
+		synchronized (paths) {
+			for (var path : loaded.entrySet()) {
+				paths.put(path.getKey(), new CachedPath(path.getValue(), expires));
+			}
+		}
+		return loaded.size();
+	}
+
+	String get(final int institutionID) throws SQLException {
+		return get(institutionID, null);
+	}
+
+	// Resolves a miss on c, e.g. a connection that is still streaming rows, so
+	// that it does not wait for a second connection from the pool.
+	String get(final int institutionID
+			 , final Connection c) throws SQLException {
+
+		long now = System.nanoTime();
+		synchronized (paths) {
+			CachedPath entry = paths.get(institutionID);
+			if (entry != null && now - entry.expires < 0) {
+				hits.incrementAndGet();
+				return entry.path;
+			}
+		}
+
+		misses.incrementAndGet();
+		String sql = String.format(INSTITUTION_PATHS, "WHERE institutionID = ?");
+		String path = (c == null ? query(sql, institutionID) : query(c, sql, institutionID)).get(institutionID);
+		if (path == null) {
+			throw new SQLException("Institution with institutionID " + institutionID + " does not exist");
+		}
+		synchronized (paths) {
+			paths.put(institutionID, new CachedPath(path, System.nanoTime() + ttlNanos));
+		}
+		return path;
+	}
+
+	void invalidate(final int institutionID) {
+		synchronized (paths) {
+			paths.remove(institutionID);
+		}
+	}
+
+	void invalidateAll() {
+		synchronized (paths) {
+			paths.clear();
+		}
+	}
+
+	int size() {
+		synchronized (paths) {
+			return paths.size();
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	private Map<Integer, String> query(final String sql
+									 , final Integer institutionID) throws SQLException {
+
+		try (Connection c = dataSource.getConnection()) {
+			return query(c, sql, institutionID);
+		}
+	}
+
+	private static Map<Integer, String> query(final Connection c
+											, final String sql
+											, final Integer institutionID) throws SQLException {
+
+		try (PreparedStatement stmt = c.prepareStatement(sql)) {
+
+			if (institutionID != null) {
+				stmt.setInt(1, institutionID);
+			}
+			Map<Integer, String> loaded = new LinkedHashMap<>();
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					loaded.put(rs.getInt("institutionID"), rs.getString("path"));
+				}
+			}
+			return loaded;
+		}
+	}
+
+	private static final class CachedPath {
+
+		final String path;
+		final long expires;
+
+		CachedPath(final String path, final long expires) {
+			this.path 		= path;
+			this.expires 	= expires;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/*
+ * Append-only record of a bulk issuance run, one JSON line per state change of
+ * a defence row. Each append() is written and fsync'd as a whole, so callers
+ * group the rows of one transaction into a single call.
+ *
+ * When a journal is reopened the last state of every row wins. A line cut
+ * short by a crash ends the replay; everything before it is kept.
+ */
+final class IssuanceJournal implements AutoCloseable {
+
+	enum State {
+		PENDING, 		// batched, not sent yet
+		SUBMITTED, 		// endorsed and sent to the orderer as transaction txId
+		COMMITTED, 		// diplomaID is on the ledger
+		FAILED 			// not issued, will be retried
+	}
+
+	static final class Entry {
+
+		final String key;
+		final State state;
+		final String txId;
+		final String diplomaID;
+		final String message;
+
+		Entry(final String key
+			, final State state
+			, final String txId
+			, final String diplomaID
+			, final String message) {
+
+			this.key 		= key;
+			this.state 		= state;
+			this.txId 		= txId;
+			this.diplomaID 	= diplomaID;
+			this.message 	= message;
+		}
+	}
+
+	private final Gson gson = new Gson();
+	private final FileChannel channel;
+	private final Map<String, Entry> latest = new HashMap<>();
+
+	private IssuanceJournal(final FileChannel channel) {
+		this.channel = channel;
+	}
+
+	static IssuanceJournal open(final Path file) throws IOException {
+
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		IssuanceJournal journal = new IssuanceJournal(FileChannel.open(file
+																	 , StandardOpenOption.CREATE
+																	 , StandardOpenOption.READ
+																	 , StandardOpenOption.WRITE));
+		try {
+			journal.replay(file);
+		} catch (IOException | RuntimeException e) {
+			journal.close();
+			throw e;
+		}
+		return journal;
+	}
+
+	// Identifies a defence row the same way the chaincode identifies the diploma
+	// issued for it.
+	static String keyOf(final DiplomaRecord diploma) {
+		return String.join("|", diploma.nationalID, diploma.institution, diploma.course, diploma.level);
+	}
+
+	synchronized Entry get(final String key) {
+		return latest.get(key);
+	}
+
+	synchronized List<Entry> inState(final State state) {
+
+		List<Entry> entries = new ArrayList<>();
+		for (var entry : latest.values()) {
+			if (entry.state == state) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	synchronized void append(final List<Entry> entries) throws IOException {
+
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		StringBuilder lines = new StringBuilder();
+		for (var entry : entries) {
+			lines.append(gson.toJson(entry)).append('\n');
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, channel.size());
+		}
+		channel.force(false);
+
+		for (var entry : entries) {
+			latest.put(entry.key, entry);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	private void replay(final Path file) throws IOException {
+
+		long valid = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Entry entry;
+				try {
+					entry = gson.fromJson(line, Entry.class);
+				} catch (JsonParseException e) {
+					break;
+				}
+				if (entry == null || entry.key == null || entry.state == null) {
+					break;
+				}
+				latest.put(entry.key, entry);
+				valid += line.getBytes(UTF_8).length + 1;
+			}
+		}
+
+		// Drop a torn last line, or finish one that only lost its newline, so that
+		// new entries start on a line of their own.
+		if (valid < channel.size()) {
+			channel.truncate(valid);
+			channel.force(false);
+		} else if (valid > channel.size()) {
+			channel.write(ByteBuffer.wrap(new byte[] {'\n'}), channel.size());
+			channel.force(false);
+		}
+	}
+}
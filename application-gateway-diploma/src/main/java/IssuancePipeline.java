@@ -0,0 +1,222 @@
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.hyperledger.fabric.client.CommitStatusException;
+import org.hyperledger.fabric.client.Contract;
+import org.hyperledger.fabric.client.EndorseException;
+import org.hyperledger.fabric.client.GatewayException;
+import org.hyperledger.fabric.client.SubmitException;
+import org.hyperledger.fabric.client.SubmittedTransaction;
+import org.hyperledger.fabric.client.Transaction;
+
+/*
+ * Submits transactions without waiting for each one to commit. Up to
+ * `peerConcurrency` transactions are endorsed and sent to the orderer at the
+ * same time, and up to `window` transactions can be in flight in total,
+ * including those waiting for their block. submit() blocks while the window
+ * is full.
+ *
+ * The listener receives one Outcome per submitted transaction or reported
+ * outcome, always in submission order and one at a time, so the output of a
+ * run does not depend on which transaction happened to commit first.
+ */
+final class IssuancePipeline implements AutoCloseable {
+
+	private final Contract contract;
+	private final int window;
+	private final Consumer<Outcome> listener;
+	private final BiConsumer<String, Transaction> endorsedListener;
+
+	private final Semaphore inFlight;
+	private final Semaphore peerCalls;
+	private final ExecutorService workers;
+
+	// Outcomes that completed ahead of an earlier submission
+	private final Map<Long, Outcome> completed = new HashMap<>();
+	private long nextSubmitted;
+	private long nextReported;
+
+	IssuancePipeline(final Contract contract
+				   , final int window
+				   , final int peerConcurrency
+				   , final Consumer<Outcome> listener) {
+
+		this(contract, window, peerConcurrency, (label, transaction) -> { }, listener);
+	}
+
+	// endorsedListener is called on a worker thread once a transaction has been
+	// endorsed, before it is sent to the orderer, so that its ID can be recorded
+	// before it could be committed. If it throws, the transaction is not sent.
+	IssuancePipeline(final Contract contract
+				   , final int window
+				   , final int peerConcurrency
+				   , final BiConsumer<String, Transaction> endorsedListener
+				   , final Consumer<Outcome> listener) {
+
+		this.contract 			= contract;
+		this.window 			= window;
+		this.listener 			= listener;
+		this.endorsedListener 	= endorsedListener;
+		this.inFlight 	= new Semaphore(window);
+		this.peerCalls 	= new Semaphore(peerConcurrency);
+		this.workers 	= Executors.newFixedThreadPool(window, task -> {
+			Thread thread = new Thread(task, "issuance");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	void submit(final String label
+			  , final String function
+			  , final String... args) throws InterruptedException {
+
+		inFlight.acquire();
+		long sequence;
+		synchronized (this) {
+			sequence = nextSubmitted++;
+		}
+
+		try {
+			workers.execute(() -> complete(sequence, issue(label, function, args)));
+		} catch (RuntimeException e) {
+			complete(sequence, new Outcome(label, null, null, false, String.valueOf(e.getMessage())));
+			throw e;
+		}
+	}
+
+	// Reports an outcome that needs no transaction, e.g. for rows found to be on
+	// the ledger already, in submission order with the transactions around it.
+	// Only such outcomes can be successful without a transactionId.
+	void report(final Outcome outcome) throws InterruptedException {
+
+		inFlight.acquire();
+		long sequence;
+		synchronized (this) {
+			sequence = nextSubmitted++;
+		}
+		complete(sequence, outcome);
+	}
+
+	// Waits until every submitted transaction has been reported.
+	void drain() throws InterruptedException {
+		inFlight.acquire(window);
+		inFlight.release(window);
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		try {
+			drain();
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private Outcome issue(final String label
+						, final String function
+						, final String... args) {
+
+		SubmittedTransaction transaction;
+		try {
+			peerCalls.acquire();
+			try {
+				Transaction endorsed = contract.newProposal(function)
+											   .addArguments(args)
+											   .build()
+											   .endorse();
+				try {
+					endorsedListener.accept(label, endorsed);
+				} catch (RuntimeException e) {
+					return new Outcome(label, endorsed.getTransactionId(), null, false
+									 , "Not submitted, recording the endorsement failed: " + e.getMessage());
+				}
+				transaction = endorsed.submitAsync();
+			} finally {
+				peerCalls.release();
+			}
+		} catch (EndorseException | SubmitException e) {
+			return new Outcome(label, e.getTransactionId(), null, false, describe(e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Outcome(label, null, null, false, "Interrupted before submitting");
+		} catch (RuntimeException e) {
+			return new Outcome(label, null, null, false, String.valueOf(e.getMessage()));
+		}
+
+		try {
+			var status = transaction.getStatus();
+			if (status.isSuccessful()) {
+				return new Outcome(label, status.getTransactionId(), transaction.getResult(), true, "");
+			}
+			return new Outcome(label, status.getTransactionId(), null, false
+							 , "Transaction failed to commit with status code " + status.getCode());
+		} catch (CommitStatusException e) {
+			return new Outcome(label, e.getTransactionId(), null, false, describe(e));
+		} catch (RuntimeException e) {
+			return new Outcome(label, transaction.getTransactionId(), null, false, String.valueOf(e.getMessage()));
+		}
+	}
+
+	// Reports every outcome that is now next in submission order and frees its
+	// slot in the window.
+	private synchronized void complete(final long sequence
+									 , final Outcome outcome) {
+
+		completed.put(sequence, outcome);
+		Outcome next;
+		while ((next = completed.remove(nextReported)) != null) {
+			nextReported++;
+			try {
+				listener.accept(next);
+			} catch (RuntimeException e) {
+				System.out.println("ERROR while reporting " + next.label + ": " + e.getMessage());
+			} finally {
+				inFlight.release();
+			}
+		}
+	}
+
+	private static String describe(final GatewayException e) {
+
+		StringBuilder message = new StringBuilder(String.valueOf(e.getMessage()));
+		for (var detail : e.getDetails()) {
+			message.append(System.lineSeparator()).append(detail.getMessage());
+		}
+		return message.toString();
+	}
+
+	static final class Outcome {
+
+		final String label;
+		final String transactionId;
+		final byte[] result;
+		final boolean successful;
+		final String message;
+
+		Outcome(final String label
+			  , final String transactionId
+			  , final byte[] result
+			  , final boolean successful
+			  , final String message) {
+
+			this.label 			= label;
+			this.transactionId 	= transactionId;
+			this.result 		= result;
+			this.successful 	= successful;
+			this.message 		= message;
+		}
+
+		String resultAsString() {
+			return result == null ? "" : new String(result, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package bureauchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.fabric.contract.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.owlike.genson.Genson;
+
+/*
+ * Drives DiplomaContract through InMemoryChaincodeStub, so the numbers cover
+ * the contract's own work (serialization, index maintenance, list building)
+ * and none of the peer's. Run with
+ *
+ *   ./gradlew jmh
+ *   ./gradlew jmh -PjmhArgs="readDiploma -p ledgerSize=10000"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiplomaContractBenchmark {
+
+	// Diplomas per person, so that national ID lookups return more than one record.
+	private static final int DIPLOMAS_PER_PERSON = 2;
+	private static final int PAGE_SIZE = 100;
+	// Diploma added by createDiploma and removed again after every invocation,
+	// so that the ledger stays at ledgerSize while it is measured.
+	private static final String NEW_DIPLOMA_ID = "diplomaNew";
+
+	@Param({ "1000", "10000", "100000" })
+	public int ledgerSize;
+
+	@Param({ "json", "compact" })
+	public String stateEncoding;
+
+	private final Genson genson = new Genson();
+
+	private DiplomaContract contract;
+	private InMemoryChaincodeStub stub;
+	private Context ctx;
+	private String[] diplomaIDs;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		stub = new InMemoryChaincodeStub();
+		ctx = new Context(stub);
+		contract = new DiplomaContract(stateEncoding);
+
+		diplomaIDs = new String[ledgerSize];
+		for (int i = 0; i < ledgerSize; i++) {
+			diplomaIDs[i] = "diploma" + i;
+			createDiploma(diplomaIDs[i], i / DIPLOMAS_PER_PERSON, i);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class NewDiploma {
+
+		@TearDown(Level.Invocation)
+		public void delete(final DiplomaContractBenchmark benchmark) {
+			benchmark.stub.nextTransaction();
+			benchmark.contract.deleteDiploma(benchmark.ctx, NEW_DIPLOMA_ID);
+		}
+	}
+
+	@Benchmark
+	public void createDiploma(final NewDiploma newDiploma) {
+		createDiploma(NEW_DIPLOMA_ID, ledgerSize / DIPLOMAS_PER_PERSON, ledgerSize);
+	}
+
+	@Benchmark
+	public Diploma readDiploma() {
+		return contract.readDiploma(ctx, randomDiplomaID());
+	}
+
+	@Benchmark
+	public String readDiplomas() {
+		List<String> batch = new ArrayList<>(PAGE_SIZE);
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			batch.add(randomDiplomaID());
+		}
+		return contract.readDiplomas(ctx, genson.serialize(batch));
+	}
+
+	@Benchmark
+	public String getAllDiplomas() {
+		return contract.getAllDiplomas(ctx);
+	}
+
+	@Benchmark
+	public String getAllDiplomasFirstPage() throws Exception {
+		return contract.getAllDiplomasWithPagination(ctx, PAGE_SIZE, "");
+	}
+
+	@Benchmark
+	public Diploma[] queryDiplomasByNationalID() throws Exception {
+		int person = ThreadLocalRandom.current().nextInt(ledgerSize / DIPLOMAS_PER_PERSON);
+		return contract.queryDiplomasByNationalID(ctx, nationalID(person));
+	}
+
+	@Benchmark
+	public Diploma[] queryDiplomasByName() throws Exception {
+		int person = ThreadLocalRandom.current().nextInt(ledgerSize / DIPLOMAS_PER_PERSON);
+		return contract.queryDiplomasByName(ctx, "First" + person, "Last" + person);
+	}
+
+	@Benchmark
+	public Diploma[] queryDiplomasByPrimKey() throws Exception {
+		int i = ThreadLocalRandom.current().nextInt(ledgerSize);
+		return contract.queryDiplomasByPrimKey(ctx
+											 , nationalID(i / DIPLOMAS_PER_PERSON)
+											 , "Faculty of Science, University of Zagreb"
+											 , "Course " + i
+											 , "graduate");
+	}
+
+	private void createDiploma(final String diplomaID, final long person, final long i) {
+		stub.nextTransaction();
+		contract.createDiploma(ctx
+							 , diplomaID
+							 , nationalID(person)
+							 , "First" + person
+							 , "Last" + person
+							 , "1999-01-01"
+							 , "Zagreb"
+							 , "2024-07-15"
+							 , "Faculty of Science, University of Zagreb"
+							 , "Course " + i
+							 , "graduate"
+							 , "mag. math.");
+	}
+
+	private String randomDiplomaID() {
+		return diplomaIDs[ThreadLocalRandom.current().nextInt(ledgerSize)];
+	}
+
+	private static String nationalID(final long person) {
+		return String.format("%011d", person);
+	}
+}
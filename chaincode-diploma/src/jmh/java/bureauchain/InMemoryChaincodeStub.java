@@ -0,0 +1,422 @@
+package bureauchain;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
+import org.hyperledger.fabric.protos.peer.ChaincodeEventPackage.ChaincodeEvent;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
+import org.hyperledger.fabric.protos.peer.ProposalPackage.SignedProposal;
+import org.hyperledger.fabric.shim.Chaincode.Response;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+import org.json.JSONObject;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * A ChaincodeStub over an in-memory sorted map, for driving DiplomaContract
+ * without a peer. Writes are visible immediately, there is no read/write set
+ * and no MVCC. Range and partial composite key scans (with and without
+ * pagination) behave like the peer's; rich queries only support selectors
+ * with equality conditions on top-level fields of JSON values.
+ */
+public class InMemoryChaincodeStub implements ChaincodeStub {
+
+	private static final String MSP_ID = "Org1MSP";
+
+	// Self-signed certificate used as the transaction creator, so that
+	// Context can build its ClientIdentity.
+	private static final String CREATOR_CERT =
+		  "-----BEGIN CERTIFICATE-----\n"
+		+ "MIIBmzCCAUGgAwIBAgIUSxNgReoV+eYmCfcox+taubbhS3swCgYIKoZIzj0EAwIw\n"
+		+ "IjEOMAwGA1UEAwwFYmVuY2gxEDAOBgNVBAoMB09yZzFNU1AwIBcNMjYxMDE3MDYx\n"
+		+ "NzMyWhgPMjEyNjA5MjMwNjE3MzJaMCIxDjAMBgNVBAMMBWJlbmNoMRAwDgYDVQQK\n"
+		+ "DAdPcmcxTVNQMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEHlhIaCI2WvNBI/A6\n"
+		+ "4e8/fOGG+5GLb7AIOM4d/9g4Rtn2ZhbnWC1pR1uot+cFEnu4QMDtcSIgHx6SGI2p\n"
+		+ "uNCJ36NTMFEwHQYDVR0OBBYEFHb4Lsa10TgDNOTclJcFJgGpW7niMB8GA1UdIwQY\n"
+		+ "MBaAFHb4Lsa10TgDNOTclJcFJgGpW7niMA8GA1UdEwEB/wQFMAMBAf8wCgYIKoZI\n"
+		+ "zj0EAwIDSAAwRQIhAPeB+jGtlU2JUGXy0sH1/0xTJ3YOrTBOOrRnxdjLZYrRAiAt\n"
+		+ "O6sJc+4AbC600QKNrIWAQon7i8S3Z1bTNio0dDAXBg==\n"
+		+ "-----END CERTIFICATE-----\n";
+
+	// Same bounds the peer uses for open-ended simple key ranges.
+	private static final String MIN_SIMPLE_KEY 	= "\u0001";
+	private static final String MAX_KEY 		= new String(Character.toChars(Character.MAX_CODE_POINT));
+
+	private final TreeMap<String, byte[]> state = new TreeMap<>();
+	private final byte[] creator = SerializedIdentity.newBuilder()
+			.setMspid(MSP_ID)
+			.setIdBytes(ByteString.copyFrom(CREATOR_CERT, UTF_8))
+			.build()
+			.toByteArray();
+
+	private long txCount = 0;
+	private ChaincodeEvent event;
+
+	public int size() {
+		return state.size();
+	}
+
+	// Starts a new transaction: a fresh transaction ID and no event.
+	public void nextTransaction() {
+		txCount++;
+		event = null;
+	}
+
+	@Override
+	public byte[] getState(final String key) {
+		return state.get(key);
+	}
+
+	@Override
+	public void putState(final String key, final byte[] value) {
+		if (value == null || value.length == 0) {
+			throw new IllegalArgumentException("Empty value for key " + key);
+		}
+		state.put(key, value.clone());
+	}
+
+	@Override
+	public void delState(final String key) {
+		state.remove(key);
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getStateByRange(final String startKey, final String endKey) {
+		return new Results(range(startKey, endKey), null);
+	}
+
+	@Override
+	public QueryResultsIteratorWithMetadata<KeyValue> getStateByRangeWithPagination(
+			final String startKey, final String endKey, final int pageSize, final String bookmark) {
+
+		String from = bookmark == null || bookmark.isEmpty() ? startKey : bookmark;
+		return page(range(from, endKey), pageSize);
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String compositeKey) {
+		return getStateByPartialCompositeKey(CompositeKey.parseCompositeKey(compositeKey));
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String objectType, final String... attributes) {
+		return getStateByPartialCompositeKey(createCompositeKey(objectType, attributes));
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final CompositeKey compositeKey) {
+		String prefix = compositeKey.toString();
+		return new Results(state.subMap(prefix, prefix + MAX_KEY), null);
+	}
+
+	@Override
+	public QueryResultsIteratorWithMetadata<KeyValue> getStateByPartialCompositeKeyWithPagination(
+			final CompositeKey compositeKey, final int pageSize, final String bookmark) {
+
+		String prefix = compositeKey.toString();
+		String from = bookmark == null || bookmark.isEmpty() ? prefix : bookmark;
+		return page(state.subMap(from, prefix + MAX_KEY), pageSize);
+	}
+
+	@Override
+	public CompositeKey createCompositeKey(final String objectType, final String... attributes) {
+		return new CompositeKey(objectType, attributes);
+	}
+
+	@Override
+	public CompositeKey splitCompositeKey(final String compositeKey) {
+		return CompositeKey.parseCompositeKey(compositeKey);
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getQueryResult(final String query) {
+		return new Results(select(query), null);
+	}
+
+	@Override
+	public QueryResultsIteratorWithMetadata<KeyValue> getQueryResultWithPagination(
+			final String query, final int pageSize, final String bookmark) {
+
+		SortedMap<String, byte[]> matches = select(query);
+		if (bookmark != null && !bookmark.isEmpty()) {
+			matches = matches.tailMap(bookmark);
+		}
+		return page(matches, pageSize);
+	}
+
+	@Override
+	public void setEvent(final String name, final byte[] payload) {
+		event = ChaincodeEvent.newBuilder()
+				.setEventName(name)
+				.setPayload(ByteString.copyFrom(payload))
+				.setTxId(getTxId())
+				.build();
+	}
+
+	@Override
+	public ChaincodeEvent getEvent() {
+		return event;
+	}
+
+	@Override
+	public String getTxId() {
+		return String.format("%064x", txCount);
+	}
+
+	@Override
+	public String getChannelId() {
+		return "mychannel";
+	}
+
+	@Override
+	public Instant getTxTimestamp() {
+		return Instant.ofEpochSecond(txCount);
+	}
+
+	@Override
+	public byte[] getCreator() {
+		return creator;
+	}
+
+	@Override
+	public String getMspId() {
+		return MSP_ID;
+	}
+
+	@Override
+	public Map<String, byte[]> getTransient() {
+		return Map.of();
+	}
+
+	private SortedMap<String, byte[]> range(final String startKey, final String endKey) {
+		String from = startKey == null || startKey.isEmpty() ? MIN_SIMPLE_KEY : startKey;
+		String to = endKey == null || endKey.isEmpty() ? MAX_KEY : endKey;
+		return state.subMap(from, to);
+	}
+
+	// Takes up to pageSize entries; the bookmark is the key of the first entry
+	// of the next page, or empty when there is none.
+	private QueryResultsIteratorWithMetadata<KeyValue> page(final SortedMap<String, byte[]> entries, final int pageSize) {
+
+		List<KeyValue> results = new ArrayList<>(Math.min(pageSize, entries.size()));
+		String bookmark = "";
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			if (results.size() == pageSize) {
+				bookmark = entry.getKey();
+				break;
+			}
+			results.add(new Entry(entry.getKey(), entry.getValue()));
+		}
+
+		QueryResponseMetadata metadata = QueryResponseMetadata.newBuilder()
+				.setFetchedRecordsCount(results.size())
+				.setBookmark(bookmark)
+				.build();
+		return new Results(results, metadata);
+	}
+
+	private SortedMap<String, byte[]> select(final String query) {
+
+		JSONObject selector = new JSONObject(query).getJSONObject("selector");
+		SortedMap<String, byte[]> matches = new TreeMap<>();
+
+		for (Map.Entry<String, byte[]> entry : range("", "").entrySet()) {
+			byte[] value = entry.getValue();
+			if (value.length == 0 || value[0] != '{') {
+				continue;
+			}
+			JSONObject document = new JSONObject(new String(value, UTF_8));
+			boolean match = true;
+			for (String field : selector.keySet()) {
+				if (!selector.get(field).equals(document.opt(field))) {
+					match = false;
+					break;
+				}
+			}
+			if (match) {
+				matches.put(entry.getKey(), value);
+			}
+		}
+		return matches;
+	}
+
+	private static final class Entry implements KeyValue {
+
+		private final String key;
+		private final byte[] value;
+
+		Entry(final String key, final byte[] value) {
+			this.key 	= key;
+			this.value 	= value;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return value;
+		}
+
+		@Override
+		public String getStringValue() {
+			return new String(value, UTF_8);
+		}
+	}
+
+	private static final class Results implements QueryResultsIterator<KeyValue>, QueryResultsIteratorWithMetadata<KeyValue> {
+
+		private final Iterable<KeyValue> results;
+		private final QueryResponseMetadata metadata;
+
+		Results(final SortedMap<String, byte[]> entries, final QueryResponseMetadata metadata) {
+			List<KeyValue> copy = new ArrayList<>(entries.size());
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				copy.add(new Entry(entry.getKey(), entry.getValue()));
+			}
+			this.results 	= copy;
+			this.metadata 	= metadata;
+		}
+
+		Results(final List<KeyValue> results, final QueryResponseMetadata metadata) {
+			this.results 	= results;
+			this.metadata 	= metadata;
+		}
+
+		@Override
+		public Iterator<KeyValue> iterator() {
+			return results.iterator();
+		}
+
+		@Override
+		public QueryResponseMetadata getMetadata() {
+			return metadata;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// Not needed by DiplomaContract.
+
+	@Override
+	public List<byte[]> getArgs() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<String> getStringArgs() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getFunction() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<String> getParameters() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Response invokeChaincode(final String chaincodeName, final List<byte[]> args, final String channel) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getStateValidationParameter(final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setStateValidationParameter(final String key, final byte[] value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyModification> getHistoryForKey(final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getPrivateData(final String collection, final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getPrivateDataHash(final String collection, final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getPrivateDataValidationParameter(final String collection, final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void putPrivateData(final String collection, final String key, final byte[] value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setPrivateDataValidationParameter(final String collection, final String key, final byte[] value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void delPrivateData(final String collection, final String key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getPrivateDataByRange(final String collection, final String startKey, final String endKey) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection, final String compositeKey) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection, final CompositeKey compositeKey) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection, final String objectType, final String... attributes) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public QueryResultsIterator<KeyValue> getPrivateDataQueryResult(final String collection, final String query) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public SignedProposal getSignedProposal() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] getBinding() {
+		throw new UnsupportedOperationException();
+	}
+}
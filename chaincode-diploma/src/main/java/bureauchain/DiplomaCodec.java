@@ -0,0 +1,158 @@
+package bureauchain;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+
+import org.hyperledger.fabric.shim.ChaincodeException;
+
+import com.owlike.genson.Genson;
+
+/*
+ * Encodes Diploma state values. Two formats can be read:
+ *
+ *   - legacy JSON, as written by Genson, which always starts with '{'
+ *   - compact, which starts with a format version byte followed by the eleven
+ *     fields in declaration order, each as an unsigned varint holding the
+ *     UTF-8 length plus one (zero marks a null field) and then the bytes
+ *
+ * Which format is written is decided by the caller.
+ */
+public final class DiplomaCodec {
+
+	public static final String JSON 	= "json";
+	public static final String COMPACT 	= "compact";
+
+	private static final byte JSON_START 			= '{';
+	private static final byte COMPACT_VERSION_1 	= 1;
+
+	private final Genson genson;
+
+	public DiplomaCodec(final Genson genson) {
+		this.genson = genson;
+	}
+
+	public static boolean isKnownEncoding(final String encoding) {
+		return JSON.equals(encoding) || COMPACT.equals(encoding);
+	}
+
+	public static boolean isCompact(final byte[] value) {
+		return value != null && value.length > 0 && value[0] == COMPACT_VERSION_1;
+	}
+
+	public byte[] encode(final Diploma diploma
+					   , final String encoding) {
+
+		if (COMPACT.equals(encoding)) {
+			return encodeCompact(diploma);
+		}
+		return genson.serialize(diploma).getBytes(UTF_8);
+	}
+
+	public Diploma decode(final byte[] value) {
+
+		if (value == null || value.length == 0) {
+			return null;
+		}
+		if (value[0] == JSON_START) {
+			return genson.deserialize(new String(value, UTF_8), Diploma.class);
+		}
+		if (value[0] == COMPACT_VERSION_1) {
+			return decodeCompact(value);
+		}
+		throw new ChaincodeException("Unknown diploma encoding version " + value[0]);
+	}
+
+	private byte[] encodeCompact(final Diploma diploma) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		out.write(COMPACT_VERSION_1);
+
+		writeField(out, diploma.getDiplomaID());
+		writeField(out, diploma.getNationalID());
+		writeField(out, diploma.getFirstName());
+		writeField(out, diploma.getLastName());
+		writeField(out, diploma.getDateOfBirth());
+		writeField(out, diploma.getPlaceOfBirth());
+		writeField(out, diploma.getDateOfIssue());
+		writeField(out, diploma.getInstitution());
+		writeField(out, diploma.getCourse());
+		writeField(out, diploma.getLevel());
+		writeField(out, diploma.getDegree());
+
+		return out.toByteArray();
+	}
+
+	private Diploma decodeCompact(final byte[] value) {
+
+		Reader in = new Reader(value, 1);
+
+		return new Diploma(in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField()
+						 , in.readField());
+	}
+
+	private static void writeField(final ByteArrayOutputStream out
+								 , final String field) {
+
+		if (field == null) {
+			out.write(0);
+			return;
+		}
+
+		byte[] bytes = field.getBytes(UTF_8);
+		int length = bytes.length + 1;
+		while ((length & ~0x7F) != 0) {
+			out.write((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.write(length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static final class Reader {
+
+		private final byte[] value;
+		private int position;
+
+		Reader(final byte[] value, final int position) {
+			this.value 		= value;
+			this.position 	= position;
+		}
+
+		String readField() {
+
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (position >= value.length || shift > 28) {
+					throw new ChaincodeException("Corrupt compact diploma value");
+				}
+				b = value[position++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			if (length == 0) {
+				return null;
+			}
+			length--;
+			if (length > value.length - position) {
+				throw new ChaincodeException("Corrupt compact diploma value");
+			}
+
+			String field = new String(value, position, length, UTF_8);
+			position += length;
+			return field;
+		}
+	}
+}
@@ -6,19 +6,32 @@ import org.hyperledger.fabric.contract.annotation.Contract;
 import org.hyperledger.fabric.contract.annotation.Default;
 import org.hyperledger.fabric.contract.annotation.Transaction;
 import org.hyperledger.fabric.shim.ChaincodeException;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
 import org.hyperledger.fabric.shim.ledger.KeyValue;
 import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
 
 import org.hyperledger.fabric.contract.annotation.Contact;
 import org.hyperledger.fabric.contract.annotation.Info;
 import org.hyperledger.fabric.contract.annotation.License;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.owlike.genson.GenericType;
 import com.owlike.genson.Genson;
 
 @Contract(
@@ -31,31 +44,94 @@ import com.owlike.genson.Genson;
 @Default
 public class DiplomaContract implements ContractInterface {
 
+	// Upper bound for the page size a client may request in a single evaluate.
+	private static final int MAX_PAGE_SIZE = 1000;
+	// Upper bound for the number of diplomas written by a single createDiplomas.
+	private static final int MAX_BATCH_SIZE = 500;
+
+	// Composite-key secondary indexes; their entries carry no data of their own.
+	private static final String NATIONAL_ID_INDEX 	= "nationalID~diplomaID";
+	private static final String NAME_INDEX 			= "lastName~firstName~diplomaID";
+	private static final byte[] INDEX_VALUE 		= new byte[] { 0 };
+	// Maps the document hash of the current content of a diploma to its ID.
+	private static final String VERIFICATION_INDEX 	= "documentHash";
+
+	// Encoding of the diplomas written by this chaincode, "compact" or "json".
+	// It is fixed when the chaincode is deployed, so that no write has to read
+	// a setting first; every endorsing peer must use the same one.
+	private static final String STATE_ENCODING = System.getenv().getOrDefault("STATE_ENCODING", DiplomaCodec.COMPACT);
+
+	// Chaincode events set by the transactions that change diplomas.
+	private static final String EVENT_CREATED 	= "DiplomaCreated";
+	private static final String EVENT_UPDATED 	= "DiplomaUpdated";
+	private static final String EVENT_DELETED 	= "DiplomaDeleted";
+
+	// Number of SHA-256 bytes kept in a natural diploma ID (128 bits).
+	private static final int NATURAL_ID_BYTES = 16;
+
 	private final Genson genson = new Genson();
+	private final DiplomaCodec codec = new DiplomaCodec(genson);
+	private final String stateEncoding;
 
 	public DiplomaContract() {
+		this(STATE_ENCODING);
+	}
+
+	DiplomaContract(final String stateEncoding) {
+		if (!DiplomaCodec.isKnownEncoding(stateEncoding)) {
+			throw new ChaincodeException("Unknown state encoding " + stateEncoding);
+		}
+		this.stateEncoding = stateEncoding;
 	}
 
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
 	public boolean diplomaExists( final Context ctx
 								, final String diplomaID) {
-		String diplomaJSON = ctx.getStub().getStringState(diplomaID);
-		return (diplomaJSON != null && !diplomaJSON.isEmpty());
+		byte[] diplomaState = ctx.getStub().getState(diplomaID);
+		return (diplomaState != null && diplomaState.length > 0);
 	}
 
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
 	public Diploma readDiploma(   final Context ctx
 								, final String diplomaID) {
 
-        if (!diplomaExists(ctx, diplomaID)) {
+        Diploma diploma = codec.decode(ctx.getStub().getState(diplomaID));
+        if (diploma == null) {
             throw new ChaincodeException("The diploma " + diplomaID + " does not exist");
         }
-
-        String diplomaJSON = ctx.getStub().getStringState(diplomaID);
-        Diploma diploma = genson.deserialize(diplomaJSON, Diploma.class);
         return diploma;
 	}
 
+	// Reads every diploma named in diplomaIDsJSON, a JSON array of IDs, with one
+	// getState per distinct ID. IDs without a diploma are listed as missing.
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String readDiplomas(   final Context ctx
+								, final String diplomaIDsJSON) {
+
+		String[] diplomaIDs = genson.deserialize(diplomaIDsJSON, String[].class);
+		if (diplomaIDs == null || diplomaIDs.length == 0) {
+			throw new ChaincodeException("No diploma IDs given");
+		}
+		if (diplomaIDs.length > MAX_PAGE_SIZE) {
+			throw new ChaincodeException("At most " + MAX_PAGE_SIZE + " diplomas can be read at once");
+		}
+
+		List<Diploma> found = new ArrayList<Diploma>();
+		List<String> missing = new ArrayList<String>();
+
+		for (String diplomaID : new LinkedHashSet<String>(Arrays.asList(diplomaIDs))) {
+			Diploma diploma = isBlank(diplomaID) ? null : codec.decode(ctx.getStub().getState(diplomaID));
+			if (diploma == null) {
+				missing.add(diplomaID);
+			} else {
+				found.add(diploma);
+			}
+		}
+
+		return genson.serialize(new DiplomaLookup(found.toArray(new Diploma[0])
+												, missing.toArray(new String[0])));
+	}
+
 	@Transaction(intent = Transaction.TYPE.SUBMIT)
 	public void createDiploma(Context ctx
 							, String diplomaID
@@ -86,8 +162,115 @@ public class DiplomaContract implements ContractInterface {
 									, level
 									, degree);
 
-		String sortedJSON = genson.serialize(diploma);
-		ctx.getStub().putStringState(diplomaID, sortedJSON);
+		putDiploma(ctx, diploma, stateEncoding);
+		setDiplomaEvent(ctx, EVENT_CREATED, eventKeys(diploma));
+	}
+
+	// Issues a diploma under an ID derived from its natural key, so the same
+	// diploma cannot be issued twice. A diploma issued before natural IDs
+	// existed is found through the nationalID index instead.
+	@Transaction(intent = Transaction.TYPE.SUBMIT)
+	public String issueDiploma(   final Context ctx
+								, final String nationalID
+								, final String firstName
+								, final String lastName
+								, final String dateOfBirth
+								, final String placeOfBirth
+								, final String dateOfIssue
+								, final String institution
+								, final String course
+								, final String level
+								, final String degree) throws Exception {
+
+		String diplomaID = naturalDiplomaID(nationalID, institution, course, level);
+		String existingID = existingDiplomaID(ctx, diplomaID, nationalID, institution, course, level);
+		if (existingID != null) {
+			throw new ChaincodeException("The diploma " + existingID + " already exists");
+		}
+		createDiploma(ctx
+					, diplomaID
+					, nationalID
+					, firstName
+					, lastName
+					, dateOfBirth
+					, placeOfBirth
+					, dateOfIssue
+					, institution
+					, course
+					, level
+					, degree);
+		return diplomaID;
+	}
+
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String getNaturalDiplomaID(final Context ctx
+									, final String nationalID
+									, final String institution
+									, final String course
+									, final String level) {
+
+		return naturalDiplomaID(nationalID, institution, course, level);
+	}
+
+	@Transaction(intent = Transaction.TYPE.SUBMIT)
+	public String createDiplomas(final Context ctx
+							   , final String diplomasJSON) throws Exception {
+
+		Diploma[] diplomas = genson.deserialize(diplomasJSON, Diploma[].class);
+		if (diplomas == null || diplomas.length == 0) {
+			throw new ChaincodeException("No diplomas given");
+		}
+		if (diplomas.length > MAX_BATCH_SIZE) {
+			throw new ChaincodeException("At most " + MAX_BATCH_SIZE + " diplomas can be created at once");
+		}
+
+		List<DiplomaResult> results = new ArrayList<DiplomaResult>();
+		List<Map<String, String>> created = new ArrayList<Map<String, String>>();
+		Set<String> batchIDs = new HashSet<String>();
+		Set<String> batchKeys = new HashSet<String>();
+
+		for (Diploma diploma : diplomas) {
+			if (diploma != null && isBlank(diploma.getDiplomaID())) {
+				diploma = withNaturalID(diploma);
+			}
+			String diplomaID = diploma == null ? null : diploma.getDiplomaID();
+
+			String missing = missingField(diploma);
+			if (missing != null) {
+				results.add(new DiplomaResult(diplomaID, DiplomaResult.INVALID, "Missing " + missing));
+				continue;
+			}
+			// Writes of this transaction are not visible to its own reads, so
+			// duplicates within the batch are caught here.
+			if (!batchIDs.add(diplomaID) || !batchKeys.add(naturalDiplomaID(diploma.getNationalID()
+																			, diploma.getInstitution()
+																			, diploma.getCourse()
+																			, diploma.getLevel()))) {
+				results.add(new DiplomaResult(diplomaID, DiplomaResult.EXISTS
+											, "The diploma " + diplomaID + " already exists"));
+				continue;
+			}
+			String existingID = existingDiplomaID(ctx
+												, diplomaID
+												, diploma.getNationalID()
+												, diploma.getInstitution()
+												, diploma.getCourse()
+												, diploma.getLevel());
+			if (existingID != null) {
+				results.add(new DiplomaResult(diplomaID, DiplomaResult.EXISTS
+											, "The diploma " + existingID + " already exists"));
+				continue;
+			}
+
+			putDiploma(ctx, diploma, stateEncoding);
+			created.add(eventKey(diploma));
+			results.add(new DiplomaResult(diplomaID, DiplomaResult.CREATED, null));
+		}
+
+		if (!created.isEmpty()) {
+			setDiplomaEvent(ctx, EVENT_CREATED, created);
+		}
+		return genson.serialize(results);
 	}
 
 	@Transaction(intent = Transaction.TYPE.SUBMIT)
@@ -104,9 +287,8 @@ public class DiplomaContract implements ContractInterface {
 							, String newLevel
 							, String newDegree) {
 
-		if (!diplomaExists(ctx, diplomaID)) {
-            throw new ChaincodeException("The diploma " + diplomaID + " does not exist");
-		}
+		byte[] oldState = diplomaState(ctx, diplomaID);
+		Diploma oldDiploma = codec.decode(oldState);
 
 		Diploma diploma = new Diploma(diplomaID
 									, newNationalID
@@ -120,18 +302,101 @@ public class DiplomaContract implements ContractInterface {
 									, newLevel
 									, newDegree);
 
-		String sortedJSON = genson.serialize(diploma);
-		ctx.getStub().putStringState(diplomaID, sortedJSON);
+		delIndexes(ctx, oldDiploma);
+		putDiploma(ctx, diploma, updateEncoding(oldState));
+		setDiplomaEvent(ctx, EVENT_UPDATED, eventKeys(oldDiploma, diploma));
 	}
 
+	// Changes only the fields given in patchJSON, a JSON object of field names
+	// to new values; the diplomaID itself cannot be changed. If expectedVersion
+	// is not empty the patch is only applied while the diploma still has that
+	// version. Returns the version of the patched diploma.
 	@Transaction(intent = Transaction.TYPE.SUBMIT)
-	public void deleteDiploma(Context ctx, String diplomaID) {
+	public String patchDiploma(   final Context ctx
+								, final String diplomaID
+								, final String patchJSON
+								, final String expectedVersion) {
 
-		if (!diplomaExists(ctx, diplomaID)) {
-            throw new ChaincodeException("The diploma " + diplomaID + " does not exist");
+		byte[] state = diplomaState(ctx, diplomaID);
+		Diploma diploma = codec.decode(state);
+
+		if (!isBlank(expectedVersion) && !expectedVersion.equals(documentHash(diploma))) {
+			throw new ChaincodeException("The diploma " + diplomaID + " has been changed since version " + expectedVersion);
+		}
+
+		Map<String, Object> patch = genson.deserialize(patchJSON, new GenericType<Map<String, Object>>() { });
+		if (patch == null || patch.isEmpty()) {
+			throw new ChaincodeException("No fields to patch");
+		}
+		for (Map.Entry<String, Object> field : patch.entrySet()) {
+			if (field.getValue() != null && !(field.getValue() instanceof String)) {
+				throw new ChaincodeException("The value of " + field.getKey() + " must be a string or null");
+			}
+		}
+
+		Map<String, String> before = eventKey(diploma);
+		delIndexes(ctx, diploma);
+		for (Map.Entry<String, Object> field : patch.entrySet()) {
+			applyField(diploma, field.getKey(), (String) field.getValue());
+		}
+		putDiploma(ctx, diploma, updateEncoding(state));
+		setDiplomaEvent(ctx, EVENT_UPDATED, Arrays.asList(before, eventKey(diploma)));
+
+		return documentHash(diploma);
+	}
+
+	// The version is also the document hash used by verifyDiplomaByHash.
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String getDiplomaVersion(  final Context ctx
+									, final String diplomaID) {
+
+		return documentHash(readDiploma(ctx, diplomaID));
+	}
+
+	// Answers whether a diploma with exactly this content is on the ledger, with
+	// a single getState. The entry is removed as soon as the diploma changes.
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String verifyDiplomaByHash(final Context ctx
+									, final String documentHash) {
+
+		ChaincodeStub stub = ctx.getStub();
+		byte[] diplomaID = isBlank(documentHash) 
+				? null 
+				: stub.getState(stub.createCompositeKey(VERIFICATION_INDEX, documentHash.trim().toLowerCase()).toString());
+
+		boolean valid = diplomaID != null && diplomaID.length > 0;
+		return genson.serialize(new DiplomaVerification(documentHash
+													  , valid
+													  , valid ? new String(diplomaID, UTF_8) : null));
+	}
+
+	// Verifies a diploma given as JSON, e.g. as read from a printout, by its
+	// document hash.
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String verifyDiplomaDocument(  final Context ctx
+										, final String diplomaJSON) {
+
+		Diploma diploma = genson.deserialize(diplomaJSON, Diploma.class);
+		if (diploma == null) {
+			throw new ChaincodeException("No diploma given");
 		}
+		return verifyDiplomaByHash(ctx, documentHash(diploma));
+	}
 
+	@Transaction(intent = Transaction.TYPE.SUBMIT)
+	public void deleteDiploma(Context ctx, String diplomaID) {
+
+		Diploma diploma = readDiploma(ctx, diplomaID);
+
+		delIndexes(ctx, diploma);
 		ctx.getStub().delState(diplomaID);
+		setDiplomaEvent(ctx, EVENT_DELETED, eventKeys(diploma));
+	}
+
+	// The encoding new diplomas are written in. Both encodings are always readable.
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String getStateEncoding(final Context ctx) {
+		return stateEncoding;
 	}
 
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
@@ -142,8 +407,7 @@ public class DiplomaContract implements ContractInterface {
 		QueryResultsIterator<KeyValue> results = ctx.getStub().getStateByRange("", "");
 
 		for (KeyValue result : results) {
-			Diploma diploma = genson.deserialize(result.getStringValue(), Diploma.class);
-			System.out.println(diploma);
+			Diploma diploma = codec.decode(result.getValue());
 			queryResults.add(diploma);
 		}
 
@@ -152,78 +416,437 @@ public class DiplomaContract implements ContractInterface {
 		return response;
 	}
 
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String getAllDiplomasWithPagination(   final Context ctx
+												, final int pageSize
+												, final String bookmark) throws Exception {
+
+		checkPageSize(pageSize);
+
+		try (QueryResultsIteratorWithMetadata<KeyValue> results = 
+				ctx.getStub().getStateByRangeWithPagination("", "", pageSize, bookmark)) {
+
+			return genson.serialize(toPage(results));
+		}
+	}
+
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
 	public Diploma[] queryDiplomasByPrimKey(  final Context ctx
 											, final String nationalID
 											, final String institution
 											, final String course
-											, final String level) throws Exception, UnsupportedOperationException {
-
-		String selector = String.format(
-				"{\"selector\":" + 
-					"{\"nationalID\":\"%s\"," + 
-					"\"institution\":\"%s\"," +
-					"\"course\":\"%s\"," + 
-					"\"level\":\"%s\"}, " + 
-				"\"use_index\":" + 
-					"[\"/indexPrimKeyDoc\", " + 
-					"\"indexPrimKey\"]}"
-				
-				, nationalID
-				, institution
-				, course
-				, level);
-		return getQueryResult(ctx, selector);
+											, final String level) throws Exception {
+
+		try (QueryResultsIterator<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKey(NATIONAL_ID_INDEX, nationalID)) {
+
+			return filterByPrimKey(readIndexed(ctx, entries), institution, course, level)
+					.toArray(new Diploma[0]);
+		}
+	}
+
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String queryDiplomasByPrimKeyWithPagination(   final Context ctx
+														, final String nationalID
+														, final String institution
+														, final String course
+														, final String level
+														, final int pageSize
+														, final String bookmark) throws Exception {
+
+		checkPageSize(pageSize);
+
+		try (QueryResultsIteratorWithMetadata<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKeyWithPagination(
+					ctx.getStub().createCompositeKey(NATIONAL_ID_INDEX, nationalID), pageSize, bookmark)) {
+
+			List<Diploma> pageResults = filterByPrimKey(readIndexed(ctx, entries), institution, course, level);
+			return genson.serialize(toPage(pageResults, entries.getMetadata()));
+		}
 	}
 
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
 	public Diploma[] queryDiplomasByName( final Context ctx
 										, final String firstName
-										, final String lastName) throws Exception, UnsupportedOperationException {
+										, final String lastName) throws Exception {
 		
-		String selector = String.format(
-				"{\"selector\":" + 
-					"{\"firstName\":\"%s\"," + 
-					"\"lastName\":\"%s\"}, " + 
-				"\"use_index\":" + 
-					"[\"/indexNameDoc\", " + 
-					"\"indexName\"]}"
-					
-				, firstName
-				, lastName);
-		return getQueryResult(ctx, selector);
+		try (QueryResultsIterator<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKey(NAME_INDEX, lastName, firstName)) {
+
+			return readIndexed(ctx, entries).toArray(new Diploma[0]);
+		}
+	}
+
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String queryDiplomasByNameWithPagination(  final Context ctx
+													, final String firstName
+													, final String lastName
+													, final int pageSize
+													, final String bookmark) throws Exception {
+
+		return getIndexedWithPagination(ctx
+									  , ctx.getStub().createCompositeKey(NAME_INDEX, lastName, firstName)
+									  , pageSize
+									  , bookmark);
 	}
 
 	@Transaction(intent = Transaction.TYPE.EVALUATE)
 	public Diploma[] queryDiplomasByNationalID(final Context ctx
-											 , final String nationalID) throws Exception, UnsupportedOperationException {
-		String selector = String.format(
-				"{\"selector\":" + 
-					"{\"nationalID\":\"%s\"}, " + 
-				"\"use_index\":" + 
-					"[\"/indexNationalIDDoc\", " + 
-					"\"indexNationalID\"]}"
-					
-				, nationalID);
-		return getQueryResult(ctx, selector);
+											 , final String nationalID) throws Exception {
+
+		try (QueryResultsIterator<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKey(NATIONAL_ID_INDEX, nationalID)) {
+
+			return readIndexed(ctx, entries).toArray(new Diploma[0]);
+		}
 	}
 
-	private Diploma[] getQueryResult( final Context ctx
-									, final String selector) throws Exception, UnsupportedOperationException {
+	@Transaction(intent = Transaction.TYPE.EVALUATE)
+	public String queryDiplomasByNationalIDWithPagination(final Context ctx
+														, final String nationalID
+														, final int pageSize
+														, final String bookmark) throws Exception {
+
+		return getIndexedWithPagination(ctx
+									  , ctx.getStub().createCompositeKey(NATIONAL_ID_INDEX, nationalID)
+									  , pageSize
+									  , bookmark);
+	}
 
-		List<Diploma> queryResults = new ArrayList<Diploma>();
+	// Adds the index entries for diplomas written before the indexes existed. The
+	// world state is walked from startKey in chunks of at most limit diplomas so a
+	// large ledger can be migrated in several transactions; the returned key is
+	// the start of the next chunk, or an empty string once every diploma is indexed.
+	// The duplicate check of issueDiploma and createDiplomas relies on the
+	// nationalID index to find diplomas stored under legacy IDs.
+	@Transaction(intent = Transaction.TYPE.SUBMIT)
+	public String reindexDiplomas(final Context ctx
+								, final String startKey
+								, final int limit) throws Exception {
+
+		if (limit <= 0 || limit > MAX_BATCH_SIZE) {
+			throw new ChaincodeException("Limit must be between 1 and " + MAX_BATCH_SIZE);
+		}
 
-		try (QueryResultsIterator<KeyValue> results = ctx.getStub().getQueryResult(selector)) {
+		int indexed = 0;
+		try (QueryResultsIterator<KeyValue> results = ctx.getStub().getStateByRange(startKey, "")) {
 
 			for (KeyValue result : results) {
-				if (result.getStringValue() == null || result.getStringValue().length() == 0) {
+				if (indexed == limit) {
+					return result.getKey();
+				}
+				Diploma diploma = codec.decode(result.getValue());
+				if (diploma == null) {
 					continue;
 				}
-				Diploma diploma = genson.deserialize(result.getStringValue(), Diploma.class);
-				queryResults.add(diploma);
+				putIndexes(ctx, diploma);
+				indexed++;
+			}
+		}
+
+		return "";
+	}
+
+	private String getIndexedWithPagination(  final Context ctx
+											, final CompositeKey partialKey
+											, final int pageSize
+											, final String bookmark) throws Exception {
+
+		checkPageSize(pageSize);
+
+		try (QueryResultsIteratorWithMetadata<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKeyWithPagination(partialKey, pageSize, bookmark)) {
+
+			return genson.serialize(toPage(readIndexed(ctx, entries), entries.getMetadata()));
+		}
+	}
+
+	// Resolves index entries to the diplomas they point to. The diploma ID is
+	// always the last attribute of an index key.
+	private List<Diploma> readIndexed(final Context ctx
+									, final Iterable<KeyValue> entries) {
+
+		ChaincodeStub stub = ctx.getStub();
+		List<Diploma> diplomas = new ArrayList<Diploma>();
+
+		for (KeyValue entry : entries) {
+			List<String> attributes = stub.splitCompositeKey(entry.getKey()).getAttributes();
+			Diploma diploma = codec.decode(stub.getState(attributes.get(attributes.size() - 1)));
+			if (diploma == null) {
+				continue;
 			}
+			diplomas.add(diploma);
 		}
 
-		return queryResults.toArray(new Diploma[0]);
+		return diplomas;
+	}
+
+	// The ID of the diploma with this natural key that is already on the
+	// ledger, or null. Diplomas issued before natural IDs existed are stored
+	// under "diploma" + timestamp IDs, so besides diplomaID the nationalID
+	// index is searched for the same institution, course and level. Only
+	// indexed diplomas are found that way: until reindexDiplomas has been run
+	// over the whole ledger, the gateway must keep confirming duplicates
+	// itself before it submits.
+	private String existingDiplomaID(final Context ctx
+								   , final String diplomaID
+								   , final String nationalID
+								   , final String institution
+								   , final String course
+								   , final String level) throws Exception {
+
+		if (diplomaExists(ctx, diplomaID)) {
+			return diplomaID;
+		}
+
+		try (QueryResultsIterator<KeyValue> entries = 
+				ctx.getStub().getStateByPartialCompositeKey(NATIONAL_ID_INDEX, nationalID)) {
+
+			for (Diploma diploma : filterByPrimKey(readIndexed(ctx, entries), institution, course, level)) {
+				return diploma.getDiplomaID();
+			}
+		}
+		return null;
+	}
+
+	private List<Diploma> filterByPrimKey(final List<Diploma> diplomas
+										, final String institution
+										, final String course
+										, final String level) {
+
+		List<Diploma> matching = new ArrayList<Diploma>();
+		for (Diploma diploma : diplomas) {
+			if (institution.equals(diploma.getInstitution())
+					&& course.equals(diploma.getCourse())
+					&& level.equals(diploma.getLevel())) {
+				matching.add(diploma);
+			}
+		}
+		return matching;
+	}
+
+	private void putIndexes(final Context ctx
+						  , final Diploma diploma) {
+
+		ChaincodeStub stub = ctx.getStub();
+		stub.putState(nationalIDIndexKey(stub, diploma).toString(), INDEX_VALUE);
+		stub.putState(nameIndexKey(stub, diploma).toString(), INDEX_VALUE);
+		stub.putState(verificationKey(stub, diploma).toString(), diploma.getDiplomaID().getBytes(UTF_8));
+	}
+
+	private void delIndexes(final Context ctx
+						  , final Diploma diploma) {
+
+		ChaincodeStub stub = ctx.getStub();
+		stub.delState(nationalIDIndexKey(stub, diploma).toString());
+		stub.delState(nameIndexKey(stub, diploma).toString());
+		stub.delState(verificationKey(stub, diploma).toString());
+	}
+
+	private CompositeKey nationalIDIndexKey(final ChaincodeStub stub
+										  , final Diploma diploma) {
+
+		return stub.createCompositeKey(NATIONAL_ID_INDEX
+									 , valueOrEmpty(diploma.getNationalID())
+									 , diploma.getDiplomaID());
+	}
+
+	private CompositeKey nameIndexKey(final ChaincodeStub stub
+									, final Diploma diploma) {
+
+		return stub.createCompositeKey(NAME_INDEX
+									 , valueOrEmpty(diploma.getLastName())
+									 , valueOrEmpty(diploma.getFirstName())
+									 , diploma.getDiplomaID());
+	}
+
+	private CompositeKey verificationKey(final ChaincodeStub stub
+									   , final Diploma diploma) {
+
+		return stub.createCompositeKey(VERIFICATION_INDEX, documentHash(diploma));
+	}
+
+	private static String valueOrEmpty(final String value) {
+		return value == null ? "" : value;
+	}
+
+	private void putDiploma(final Context ctx
+						  , final Diploma diploma
+						  , final String encoding) {
+
+		ctx.getStub().putState(diploma.getDiplomaID(), codec.encode(diploma, encoding));
+		putIndexes(ctx, diploma);
+	}
+
+	// The state of a diploma as stored, for the transactions that rewrite it.
+	private byte[] diplomaState(final Context ctx
+							  , final String diplomaID) {
+
+		byte[] state = ctx.getStub().getState(diplomaID);
+		if (state == null || state.length == 0) {
+			throw new ChaincodeException("The diploma " + diplomaID + " does not exist");
+		}
+		return state;
+	}
+
+	// A compact record stays compact. A legacy JSON record is rewritten in the
+	// deployed encoding, so it is converted as it is updated.
+	private String updateEncoding(final byte[] oldState) {
+		return DiplomaCodec.isCompact(oldState) ? DiplomaCodec.COMPACT : stateEncoding;
+	}
+
+	// The natural key of a diploma is (nationalID, institution, course, level).
+	// Its ID is a truncated SHA-256 of the NUL-separated key, so the same
+	// diploma always maps to the same ledger key.
+	private static String naturalDiplomaID(   final String nationalID
+											, final String institution
+											, final String course
+											, final String level) {
+
+		String naturalKey = String.join("\u0000"
+									  , valueOrEmpty(nationalID)
+									  , valueOrEmpty(institution)
+									  , valueOrEmpty(course)
+									  , valueOrEmpty(level));
+		return "diploma" + hex(sha256(naturalKey.getBytes(UTF_8)), NATURAL_ID_BYTES);
+	}
+
+	// Fabric only delivers the last event set by a transaction, so each
+	// transaction sets one event listing every diploma it changed, by the
+	// attributes the diplomas can be looked up with. An update lists the
+	// diploma as it was and as it is now.
+	private void setDiplomaEvent( final Context ctx
+								, final String name
+								, final List<Map<String, String>> diplomas) {
+
+		ctx.getStub().setEvent(name, genson.serialize(diplomas).getBytes(UTF_8));
+	}
+
+	private static List<Map<String, String>> eventKeys(final Diploma... diplomas) {
+
+		List<Map<String, String>> keys = new ArrayList<Map<String, String>>();
+		for (Diploma diploma : diplomas) {
+			keys.add(eventKey(diploma));
+		}
+		return keys;
+	}
+
+	private static Map<String, String> eventKey(final Diploma diploma) {
+
+		Map<String, String> key = new LinkedHashMap<String, String>();
+		key.put("diplomaID", 	diploma.getDiplomaID());
+		key.put("nationalID", 	diploma.getNationalID());
+		key.put("firstName", 	diploma.getFirstName());
+		key.put("lastName", 	diploma.getLastName());
+		return key;
+	}
+
+	// The document hash is a SHA-256 of the diploma's compact encoding, so it
+	// only depends on the field values and not on how the record is stored. It
+	// serves both as the diploma's version and as its public verification code.
+	private String documentHash(final Diploma diploma) {
+		return hex(sha256(codec.encode(diploma, DiplomaCodec.COMPACT)), 32);
+	}
+
+	private static void applyField(   final Diploma diploma
+									, final String field
+									, final String value) {
+
+		switch (field) {
+			case "nationalID": 		diploma.setNationalID(value); 	break;
+			case "firstName": 		diploma.setFirstName(value); 	break;
+			case "lastName": 		diploma.setLastName(value); 	break;
+			case "dateOfBirth": 	diploma.setDateOfBirth(value); 	break;
+			case "placeOfBirth": 	diploma.setPlaceOfBirth(value); break;
+			case "dateOfIssue": 	diploma.setDateOfIssue(value); 	break;
+			case "institution": 	diploma.setInstitution(value); 	break;
+			case "course": 			diploma.setCourse(value); 		break;
+			case "level": 			diploma.setLevel(value); 		break;
+			case "degree": 			diploma.setDegree(value); 		break;
+			default:
+				throw new ChaincodeException("The field " + field + " cannot be patched");
+		}
+	}
+
+	private static byte[] sha256(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new ChaincodeException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String hex(final byte[] bytes, final int length) {
+		StringBuilder hex = new StringBuilder(length * 2);
+		for (int i = 0; i < length; i++) {
+			hex.append(String.format("%02x", bytes[i]));
+		}
+		return hex.toString();
+	}
+
+	private static Diploma withNaturalID(final Diploma diploma) {
+
+		return new Diploma(naturalDiplomaID(diploma.getNationalID()
+										  , diploma.getInstitution()
+										  , diploma.getCourse()
+										  , diploma.getLevel())
+						 , diploma.getNationalID()
+						 , diploma.getFirstName()
+						 , diploma.getLastName()
+						 , diploma.getDateOfBirth()
+						 , diploma.getPlaceOfBirth()
+						 , diploma.getDateOfIssue()
+						 , diploma.getInstitution()
+						 , diploma.getCourse()
+						 , diploma.getLevel()
+						 , diploma.getDegree());
+	}
+
+	private String missingField(final Diploma diploma) {
+
+		if (diploma == null) return "diploma";
+		if (isBlank(diploma.getDiplomaID())) return "diplomaID";
+		if (isBlank(diploma.getNationalID())) return "nationalID";
+		if (isBlank(diploma.getFirstName())) return "firstName";
+		if (isBlank(diploma.getLastName())) return "lastName";
+		if (isBlank(diploma.getDateOfIssue())) return "dateOfIssue";
+		if (isBlank(diploma.getInstitution())) return "institution";
+		if (isBlank(diploma.getCourse())) return "course";
+		if (isBlank(diploma.getLevel())) return "level";
+		if (isBlank(diploma.getDegree())) return "degree";
+		return null;
+	}
+
+	private static boolean isBlank(final String value) {
+		return value == null || value.trim().isEmpty();
+	}
+
+	private DiplomaPage toPage(final QueryResultsIteratorWithMetadata<KeyValue> results) {
+
+		List<Diploma> pageResults = new ArrayList<Diploma>();
+
+		for (KeyValue result : results) {
+			Diploma diploma = codec.decode(result.getValue());
+			if (diploma == null) {
+				continue;
+			}
+			pageResults.add(diploma);
+		}
+
+		return toPage(pageResults, results.getMetadata());
+	}
+
+	private DiplomaPage toPage(final List<Diploma> pageResults
+							 , final QueryResponseMetadata metadata) {
+
+		return new DiplomaPage(pageResults.toArray(new Diploma[0])
+							 , metadata.getFetchedRecordsCount()
+							 , metadata.getBookmark());
+	}
+
+	private void checkPageSize(final int pageSize) {
+		if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+			throw new ChaincodeException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+		}
 	}
 }
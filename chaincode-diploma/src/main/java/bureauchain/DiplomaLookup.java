@@ -0,0 +1,29 @@
+package bureauchain;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import com.owlike.genson.annotation.JsonProperty;
+
+@DataType()
+public class DiplomaLookup {
+
+	@Property() private final Diploma[] records;
+	@Property() private final String[] missing;
+
+	public DiplomaLookup(
+			  @JsonProperty("records") 	final Diploma[] records
+			, @JsonProperty("missing") 	final String[] missing) {
+
+		this.records 	= records;
+		this.missing 	= missing;
+	}
+
+	public Diploma[] getRecords() {
+		return records;
+	}
+
+	public String[] getMissing() {
+		return missing;
+	}
+
+}
@@ -0,0 +1,36 @@
+package bureauchain;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import com.owlike.genson.annotation.JsonProperty;
+
+@DataType()
+public class DiplomaPage {
+
+	@Property() private final Diploma[] records;
+	@Property() private final int fetchedRecordsCount;
+	@Property() private final String bookmark;
+
+	public DiplomaPage(
+			  @JsonProperty("records") 				final Diploma[] records
+			, @JsonProperty("fetchedRecordsCount") 	final int fetchedRecordsCount
+			, @JsonProperty("bookmark") 			final String bookmark) {
+
+		this.records 				= records;
+		this.fetchedRecordsCount 	= fetchedRecordsCount;
+		this.bookmark 				= bookmark;
+	}
+
+	public Diploma[] getRecords() {
+		return records;
+	}
+
+	public int getFetchedRecordsCount() {
+		return fetchedRecordsCount;
+	}
+
+	public String getBookmark() {
+		return bookmark;
+	}
+
+}
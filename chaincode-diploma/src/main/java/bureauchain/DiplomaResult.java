@@ -0,0 +1,40 @@
+package bureauchain;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import com.owlike.genson.annotation.JsonProperty;
+
+@DataType()
+public class DiplomaResult {
+
+	public static final String CREATED 	= "CREATED";
+	public static final String EXISTS 	= "EXISTS";
+	public static final String INVALID 	= "INVALID";
+
+	@Property() private final String diplomaID;
+	@Property() private final String status;
+	@Property() private final String message;
+
+	public DiplomaResult(
+			  @JsonProperty("diplomaID") 	final String diplomaID
+			, @JsonProperty("status") 		final String status
+			, @JsonProperty("message") 		final String message) {
+
+		this.diplomaID 	= diplomaID;
+		this.status 	= status;
+		this.message 	= message;
+	}
+
+	public String getDiplomaID() {
+		return diplomaID;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+}
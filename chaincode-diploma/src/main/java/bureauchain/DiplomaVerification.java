@@ -0,0 +1,36 @@
+package bureauchain;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import com.owlike.genson.annotation.JsonProperty;
+
+@DataType()
+public class DiplomaVerification {
+
+	@Property() private final String documentHash;
+	@Property() private final boolean valid;
+	@Property() private final String diplomaID;
+
+	public DiplomaVerification(
+			  @JsonProperty("documentHash") 	final String documentHash
+			, @JsonProperty("valid") 			final boolean valid
+			, @JsonProperty("diplomaID") 		final String diplomaID) {
+
+		this.documentHash 	= documentHash;
+		this.valid 			= valid;
+		this.diplomaID 		= diplomaID;
+	}
+
+	public String getDocumentHash() {
+		return documentHash;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public String getDiplomaID() {
+		return diplomaID;
+	}
+
+}